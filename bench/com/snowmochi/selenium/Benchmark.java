@@ -0,0 +1,94 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+
+/**
+ * A minimal JMH-style harness: each benchmark is run repeatedly for a
+ * warmup period, then for several timed iterations, and the average time
+ * per operation is reported with its spread across iterations.  Results of
+ * each operation are kept in a sink so the JIT cannot drop the work.
+ */
+abstract class Benchmark {
+	static volatile Object sink;
+
+	final String name;
+
+	Benchmark(String name) {
+		this.name = name;
+	}
+
+	void setUp() throws Exception {
+	}
+
+	void tearDown() throws Exception {
+	}
+
+	abstract Object run() throws Exception;
+
+	static long warmupMillis = 1000;
+	static long iterationMillis = 1000;
+	static int iterations = 5;
+
+	static void runAll(List<Benchmark> benchmarks, String filter) throws Exception {
+		System.out.println(String.format("%-50s %15s %12s %10s", "Benchmark", "ns/op", "+/-", "ops"));
+		for (Benchmark benchmark : benchmarks) {
+			if (filter != null && benchmark.name.indexOf(filter) < 0) {
+				continue;
+			}
+			benchmark.setUp();
+			try {
+				measure(benchmark, warmupMillis);
+				double results[] = new double[iterations];
+				long totalOps = 0;
+				for (int i = 0; i < iterations; i++) {
+					long counts[] = measure(benchmark, iterationMillis);
+					results[i] = (double) counts[1] / counts[0];
+					totalOps += counts[0];
+				}
+				double mean = 0;
+				for (double result : results) {
+					mean += result;
+				}
+				mean /= results.length;
+				double variance = 0;
+				for (double result : results) {
+					variance += (result - mean) * (result - mean);
+				}
+				double deviation = Math.sqrt(variance / Math.max(results.length - 1, 1));
+				System.out.println(String.format(Locale.US, "%-50s %15.1f %12.1f %10d", benchmark.name, mean, deviation, totalOps));
+			} finally {
+				benchmark.tearDown();
+			}
+		}
+	}
+
+	/**
+	 * Returns the operation count and the nanoseconds they took.
+	 */
+	static long[] measure(Benchmark benchmark, long millis) throws Exception {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long ops = 0;
+		long started = System.nanoTime();
+		long now;
+		do {
+			sink = benchmark.run();
+			ops++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		return new long[] { ops, now - started };
+	}
+}
@@ -0,0 +1,286 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import org.w3c.dom.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Benchmarks for the client-side work the driver does around each RC call:
+ * parsing Selenese files, normalizing arguments, rewriting commands in
+ * HtmlCommandProcessor and writing reports.  Nothing here talks to a
+ * server; command processors answer from memory.
+ *
+ * Usage: DriverBenchmarks [name-filter], with the bench.warmup,
+ * bench.time (both in ms) and bench.iterations system properties.
+ */
+public class DriverBenchmarks {
+	static final int SMALL_ROWS = 10;
+	static final int LARGE_ROWS = 20000;
+
+	static File tempDir;
+
+	public static void main(String args[]) throws Exception {
+		Benchmark.warmupMillis = Long.getLong("bench.warmup", Benchmark.warmupMillis).longValue();
+		Benchmark.iterationMillis = Long.getLong("bench.time", Benchmark.iterationMillis).longValue();
+		Benchmark.iterations = Integer.getInteger("bench.iterations", Benchmark.iterations).intValue();
+		tempDir = File.createTempFile("selenium-bench", "");
+		tempDir.delete();
+		tempDir.mkdirs();
+		try {
+			Benchmark.runAll(benchmarks(), args.length > 0 ? args[0] : null);
+		} finally {
+			for (File file : tempDir.listFiles()) {
+				file.delete();
+			}
+			tempDir.delete();
+		}
+	}
+
+	static List<Benchmark> benchmarks() throws Exception {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (final boolean xml : new boolean[] { false, true }) {
+			for (final int rows : new int[] { SMALL_ROWS, LARGE_ROWS }) {
+				final File file = writeTest(xml, rows);
+				benchmarks.add(new Benchmark("parseDocument/" + (xml ? "xml" : "neko") + "/" + rows + " rows") {
+					SeleniumHtmlClient client = new SeleniumHtmlClient();
+					PrintStream err;
+
+					void setUp() {
+						// parseDocument reports the parser it picks on every call
+						err = System.err;
+						System.setErr(new PrintStream(new ByteArrayOutputStream()));
+					}
+
+					void tearDown() {
+						System.setErr(err);
+					}
+
+					Object run() throws Exception {
+						return client.parseDocument(file.toString());
+					}
+				});
+			}
+		}
+		final File largeTest = writeTest(false, LARGE_ROWS);
+		benchmarks.add(new Benchmark("TestPlan.compile/" + LARGE_ROWS + " rows") {
+			Document document;
+
+			void setUp() throws Exception {
+				document = new SeleniumHtmlClient().parseDocument(largeTest.toString());
+			}
+
+			Object run() {
+				return TestPlan.compile(document);
+			}
+		});
+
+		final String cells[] = {
+			"//div[@id='main']/table/tbody/tr[2]/td[3]",
+			"  some   text\u00A0with  padding  ",
+			"hello world - Google Search",
+			"",
+		};
+		benchmarks.add(new Benchmark("normalize/scan") {
+			Object run() {
+				int length = 0;
+				for (String cell : cells) {
+					length += TestPlan.normalize(cell).length();
+				}
+				return length;
+			}
+		});
+		benchmarks.add(new Benchmark("normalize/regex (pre-plan baseline)") {
+			Object run() {
+				int length = 0;
+				for (String cell : cells) {
+					length += cell.replaceAll(" +", " ").replace('\u00A0', ' ').trim().length();
+				}
+				return length;
+			}
+		});
+		benchmarks.add(new Benchmark("executeStep/element") {
+			SeleniumHtmlClient client = new SeleniumHtmlClient();
+			Element row;
+
+			void setUp() throws Exception {
+				client.commandProcessor = newProcessor("OK");
+				Document document = client.parseDocument(writeTest(false, SMALL_ROWS).toString());
+				row = (Element) document.getElementsByTagName("tr").item(2);
+			}
+
+			Object run() throws Exception {
+				return client.executeStep(row);
+			}
+		});
+
+		benchmarks.add(new DoCommandBenchmark("doCommand/passthrough", "OK") {
+			Object run() {
+				return processor.doCommand("click", new String[] { "id=submit", "" });
+			}
+		});
+		benchmarks.add(new DoCommandBenchmark("doCommand/store", "OK") {
+			Object run() {
+				return processor.doCommand("store", new String[] { "42", "answer" });
+			}
+		});
+		benchmarks.add(new DoCommandBenchmark("doCommand/verifySelected index=", "OK") {
+			Object run() {
+				return processor.doCommand("verifySelected", new String[] { "id=country", "index=3" });
+			}
+		});
+		benchmarks.add(new DoCommandBenchmark("doCommand/verifySelected label", "OK") {
+			Object run() {
+				return processor.doCommand("verifySelected", new String[] { "id=country", "Japan" });
+			}
+		});
+		benchmarks.add(new DoCommandBenchmark("doCommand/assertErrorOnNext+click", "ERROR: expected") {
+			Object run() {
+				processor.doCommand("assertErrorOnNext", new String[] { "expected", "" });
+				return processor.doCommand("click", new String[] { "id=missing", "" });
+			}
+		});
+
+		for (final String format : new String[] { "html", "junit", "json" }) {
+			for (final int tests : new int[] { 10, 1000, 10000 }) {
+				benchmarks.add(new Benchmark("report/" + format + "/" + tests + " tests") {
+					TestSuite suite;
+
+					void setUp() {
+						suite = newSuite(tests, 10);
+					}
+
+					Object run() throws Exception {
+						NullWriter out = new NullWriter();
+						SeleniumHtmlClient client = new SeleniumHtmlClient();
+						client.setResultsWriter(out);
+						client.setReportFormat(format);
+						report(client.createReporter(), suite);
+						return out.count;
+					}
+				});
+			}
+		}
+		return benchmarks;
+	}
+
+	abstract static class DoCommandBenchmark extends Benchmark {
+		final String response;
+		SeleniumHtmlClient.HtmlCommandProcessor processor;
+
+		DoCommandBenchmark(String name, String response) {
+			super(name);
+			this.response = response;
+		}
+
+		void setUp() {
+			processor = newProcessor(response);
+		}
+	}
+
+	/**
+	 * Returns a command processor that answers every command with the given
+	 * response instead of contacting a server.
+	 */
+	static SeleniumHtmlClient.HtmlCommandProcessor newProcessor(final String response) {
+		return new SeleniumHtmlClient.HtmlCommandProcessor("localhost", 4444, "*mock", "http://localhost/", true) {
+			public String executeCommandOnServlet(String command) {
+				return response;
+			}
+		};
+	}
+
+	static File writeTest(boolean xml, int rows) throws IOException {
+		File file = File.createTempFile(xml ? "xml" : "html", ".html", tempDir);
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			if (xml) {
+				out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+				out.println("<html xmlns=\"http://www.w3.org/1999/xhtml\">");
+			} else {
+				out.println("<html>");
+			}
+			out.println("<head><link rel=\"selenium.base\" href=\"http://localhost/\" /><title>bench</title></head>");
+			out.println("<body><table><thead><tr><td colspan=\"3\">bench</td></tr></thead><tbody>");
+			for (int i = 0; i < rows; i++) {
+				out.println("<tr><td>verifyText</td><td>//div[@id='row" + i + "']/span</td><td>value  number&#160;" + i + "</td></tr>");
+			}
+			out.println("</tbody></table></body></html>");
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	static TestSuite newSuite(int tests, int commands) {
+		TestSuite suite = new TestSuite();
+		suite.file = new File("bench_suite.html");
+		suite.name = "Bench Suite";
+		suite.result = false;
+		suite.tests = new Test[tests];
+		for (int i = 0; i < tests; i++) {
+			Test test = new Test();
+			test.label = "test" + i;
+			test.file = new File("test" + i + ".html");
+			test.name = "Test " + i;
+			test.result = i % 10 != 0;
+			test.time = 1000 + i;
+			test.commands = new Command[commands];
+			for (int j = 0; j < commands; j++) {
+				Command command = new Command();
+				command.cmd = "verifyText";
+				command.args = new String[] { "id=field" + j, "expected value " + j };
+				command.error = !test.result && j == commands - 1;
+				command.result = command.error ? "ERROR: Actual value 'x' did not match 'expected'" : "OK";
+				command.time = 40 + j;
+				test.commands[j] = command;
+			}
+			suite.tests[i] = test;
+		}
+		return suite;
+	}
+
+	static void report(ResultReporter reporter, TestSuite suite) throws IOException {
+		reporter.startSuite(suite);
+		for (Test test : suite.tests) {
+			reporter.startTest(test);
+			for (Command command : test.commands) {
+				reporter.command(test, command);
+			}
+			reporter.endTest(test);
+		}
+		reporter.endSuite(suite);
+	}
+
+	static class NullWriter extends Writer {
+		long count;
+
+		public void write(char buffer[], int offset, int length) {
+			count += length;
+		}
+
+		public void write(String text) {
+			count += text.length();
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,608 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import com.thoughtworks.selenium.*;
+
+/**
+ * Self-checks for driver behaviour that a Selenese run against a real
+ * server would not catch.  Command processors answer from memory, so
+ * nothing here needs a Selenium server or a browser.  Exits with status 1 if any
+ * check fails.
+ *
+ * Usage: DriverChecks [name-filter]
+ */
+public class DriverChecks {
+	abstract static class Check {
+		final String name;
+
+		Check(String name) {
+			this.name = name;
+		}
+
+		abstract void run() throws Exception;
+	}
+
+	public static void main(String args[]) throws Exception {
+		String filter = args.length > 0 && args[0].length() > 0 ? args[0] : null;
+		int failures = 0;
+		for (Check check : checks()) {
+			if (filter != null && check.name.indexOf(filter) < 0) {
+				continue;
+			}
+			try {
+				check.run();
+				System.out.println("ok      " + check.name);
+			} catch (Throwable e) {
+				failures++;
+				System.out.println("FAILED  " + check.name + ": " + e.getMessage());
+			}
+		}
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	static List<Check> checks() {
+		List<Check> checks = new ArrayList<Check>();
+		checks.add(new Check("accessorCache/repeats answered from cache") {
+			void run() {
+				CountingProcessor processor = new CountingProcessor();
+				String first = processor.doCommand("getTitle", new String[0]);
+				String second = processor.doCommand("getTitle", new String[0]);
+				expect(first, second);
+				expect(1, processor.calls);
+			}
+		});
+		checks.add(new Check("accessorCache/javascript{} re-evaluated") {
+			void run() {
+				CountingProcessor processor = new CountingProcessor();
+				String script = "javascript{new Date().getTime()}";
+				String first = processor.doCommand("getExpression", new String[] { script });
+				String second = processor.doCommand("getExpression", new String[] { script });
+				expect(2, processor.calls);
+				if (first.equals(second)) {
+					throw new IllegalStateException("second evaluation returned the first result " + first);
+				}
+				processor.doCommand("verifyExpression", new String[] { script, "*" });
+				processor.doCommand("verifyExpression", new String[] { script, "*" });
+				expect(4, processor.calls);
+			}
+		});
+		checks.add(new Check("accessorCache/storeExpression javascript{} re-evaluated") {
+			void run() {
+				SeleniumHtmlClient client = new SeleniumHtmlClient();
+				CountingProcessor processor = new CountingProcessor();
+				client.commandProcessor = processor;
+				client.store("storeExpression", new String[] { "javascript{Math.random()}", "a" });
+				client.store("storeExpression", new String[] { "javascript{Math.random()}", "b" });
+				expect(2, processor.calls);
+				if (client.variables.get("a").equals(client.variables.get("b"))) {
+					throw new IllegalStateException("${b} got the cached value of ${a}");
+				}
+			}
+		});
+		checks.add(new Check("store/literal value fails an expected error") {
+			void run() throws Exception {
+				SeleniumHtmlClient client = new SeleniumHtmlClient();
+				CountingProcessor processor = new CountingProcessor();
+				client.commandProcessor = processor;
+				client.executeStep("assertErrorOnNext", new String[] { "*" });
+				SeleniumHtmlClient.Command command = client.executeStep("store", new String[] { "value", "a" });
+				expect(Boolean.TRUE, Boolean.valueOf(command.error));
+				expect("ERROR: Error expected", command.result);
+				command = client.executeStep("store", new String[] { "value", "b" });
+				expect(Boolean.FALSE, Boolean.valueOf(command.error));
+				expect("value", client.variables.get("b"));
+				expect(0, processor.calls);
+			}
+		});
+		checks.add(new Check("waitFor/lost session thrown at once") {
+			void run() {
+				CountingProcessor processor = new CountingProcessor() {
+					public String executeCommandOnServlet(String command) {
+						if (command.startsWith("cmd=getEval")) {
+							return "ERROR: eval is disabled";
+						}
+						return super.executeCommandOnServlet(command);
+					}
+				};
+				processor.poller.setTimeout(300);
+				processor.response = "ERROR: Actual value 'Login' did not match 'Home'";
+				try {
+					processor.doCommand("waitForTitle", new String[] { "Home", "" });
+					throw new IllegalStateException("unmet condition passed");
+				} catch (SeleniumException e) {
+					expect(Boolean.TRUE, Boolean.valueOf(e.getMessage().startsWith("ERROR: Timed out")));
+				}
+				processor.poller.setTimeout(2000);
+				processor.response = "ERROR: Session 1 doesn't exist; perhaps this session was already stopped";
+				int calls = processor.calls;
+				try {
+					processor.doCommand("waitForTitle", new String[] { "Home", "" });
+					throw new IllegalStateException("lost session passed");
+				} catch (SeleniumException e) {
+					expect(processor.response, e.getMessage());
+				}
+				expect(calls + 1, processor.calls);
+			}
+		});
+		checks.add(new Check("accessorBatch/skipped while an error is expected") {
+			void run() throws Exception {
+				SeleniumHtmlClient client = new SeleniumHtmlClient();
+				CountingProcessor processor = new CountingProcessor();
+				processor.expectError = true;
+				client.commandProcessor = processor;
+				expect(Integer.valueOf(0), Integer.valueOf(client.executeBatch(newVerifyPlan(client), 0).size()));
+				expect(0, processor.calls);
+			}
+		});
+		checks.add(new Check("accessorBatch/skipped on a lost connection") {
+			void run() throws Exception {
+				SeleniumHtmlClient client = new SeleniumHtmlClient();
+				CountingProcessor processor = new CountingProcessor();
+				processor.failure = new SeleniumException("Error talking to the Selenium server",
+					new IOException("connection reset"));
+				client.commandProcessor = processor;
+				expect(Integer.valueOf(0), Integer.valueOf(client.executeBatch(newVerifyPlan(client), 0).size()));
+			}
+		});
+		checks.add(new Check("accessorBatch/rejected eval turns batching off") {
+			void run() throws Exception {
+				SeleniumHtmlClient client = new SeleniumHtmlClient();
+				CountingProcessor processor = new CountingProcessor();
+				processor.response = "ERROR: Threw an exception: PatternMatcher is not defined";
+				client.commandProcessor = processor;
+				expect(null, client.executeBatch(newVerifyPlan(client), 0));
+			}
+		});
+		checks.add(new Check("sessionPool/pooled session reports to the client holding it") {
+			void run() {
+				SessionPool pool = new SessionPool(new SessionPool.Factory() {
+					public CommandProcessor newSession(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+						return new CountingProcessor();
+					}
+				});
+				SeleniumHtmlClient first = newPooledClient(pool);
+				first.openSession();
+				CommandProcessor session = first.commandProcessor;
+				first.closeSession();
+				SeleniumHtmlClient second = newPooledClient(pool);
+				second.openSession();
+				expect(session, second.commandProcessor);
+				second.commandProcessor.doCommand("getTitle", new String[0]);
+				second.closeSession();
+				expect(Long.valueOf(0), Long.valueOf(first.metrics.getAccessorCacheMisses()));
+				expect(Long.valueOf(1), Long.valueOf(second.metrics.getAccessorCacheMisses()));
+			}
+		});
+		checks.add(new Check("sessionPool/keep-alive setting is part of the key") {
+			void run() {
+				SessionPool pool = new SessionPool(new SessionPool.Factory() {
+					public CommandProcessor newSession(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+						return new CountingProcessor();
+					}
+				});
+				CommandProcessor kept = pool.acquire("localhost", 4444, "*mock", "http://localhost/", true);
+				pool.release(kept);
+				CommandProcessor closed = pool.acquire("localhost", 4444, "*mock", "http://localhost/", false);
+				if (closed == kept) {
+					throw new IllegalStateException("a keep-alive session was handed out without keep-alive");
+				}
+				pool.closeAll();
+			}
+		});
+		checks.add(new Check("serverFarm/unreachable server taken out of rotation") {
+			void run() {
+				SeleniumException refused = new SeleniumException("Error talking to the Selenium server",
+					new IOException("Connection refused"));
+				ServerFarm farm = newFarm(refused);
+				CommandProcessor session = farm.acquire("*mock", "http://localhost/", true);
+				expect("b:2", farm.leases.get(session).toString());
+				expect(Boolean.TRUE, Boolean.valueOf(farm.endpoints.get(0).down));
+				farm.release(session);
+				farm.endpoints.get(1).down = true;
+				try {
+					farm.acquire("*mock", "http://localhost/", true);
+					throw new IllegalStateException("acquired a session with every server down");
+				} catch (SeleniumException e) {
+					expect(refused, e.getCause());
+				}
+			}
+		});
+		checks.add(new Check("serverFarm/other failures are the test's") {
+			void run() {
+				ServerFarm farm = newFarm(new SeleniumException("Failed to start new browser session: unsupported browser"));
+				try {
+					farm.acquire("*mock", "http://localhost/", true);
+					throw new IllegalStateException("started on the next server");
+				} catch (SeleniumException e) {
+					// expected
+				}
+				expect(Boolean.FALSE, Boolean.valueOf(farm.endpoints.get(0).down));
+				expect(0, farm.endpoints.get(0).inUse);
+			}
+		});
+		checks.add(new Check("history/torn write at the end is dropped") {
+			void run() throws Exception {
+				File file = newHistory("/tests/a.html");
+				long length = file.length();
+				RandomAccessFile out = new RandomAccessFile(file, "rw");
+				out.seek(length);
+				out.write(new byte[] { RunHistory.TEST, (byte) 0x80 });
+				out.close();
+				RunHistory.open(file).close();
+				expect(Long.valueOf(length), Long.valueOf(file.length()));
+			}
+		});
+		checks.add(new Check("history/bad record before the end fails") {
+			void run() throws Exception {
+				File file = newHistory("/tests/a.html");
+				long length = file.length();
+				RandomAccessFile out = new RandomAccessFile(file, "rw");
+				out.seek(RunHistory.MAGIC.length);
+				out.write(0x7f);
+				out.close();
+				try {
+					RunHistory.open(file).close();
+					throw new IllegalStateException("opened a corrupt history");
+				} catch (IOException e) {
+					// expected
+				}
+				expect(Long.valueOf(length), Long.valueOf(file.length()));
+			}
+		});
+		checks.add(new Check("history/one run appends at a time") {
+			void run() throws Exception {
+				File file = newHistory("/tests/a.html");
+				RunHistory history = RunHistory.open(file);
+				try {
+					RunHistory.open(file).close();
+					throw new IllegalStateException("opened a history twice");
+				} catch (IOException e) {
+					// expected
+				} finally {
+					history.close();
+				}
+				RunHistory.open(file).close();
+			}
+		});
+		checks.add(new Check("history/long names keyed as they read back") {
+			void run() throws Exception {
+				StringBuilder path = new StringBuilder("/");
+				for (int i = 0; i < 3000; i++) {
+					path.append('\u00e9');
+				}
+				File file = newHistory(path.toString());
+				RunHistory history = RunHistory.open(file);
+				history.record(newTest(path.toString()));
+				history.record(newTest(path.toString()));
+				history.close();
+				history = RunHistory.open(file);
+				history.close();
+				// the run, the test's path and its label
+				expect(Integer.valueOf(3), Integer.valueOf(history.getNameCount()));
+				String name = history.getName(1);
+				if (name.indexOf('\ufffd') >= 0 || !path.toString().startsWith(name)) {
+					throw new IllegalStateException("name was cut inside a character");
+				}
+			}
+		});
+		checks.add(new Check("history/report ignores runs appended after its first pass") {
+			void run() throws Exception {
+				File file = newHistory("/tests/a.html");
+				RunHistory reader = new RunHistory(file);
+				HistoryReport report = new HistoryReport(reader, reader.scan(null),
+					new PrintStream(new ByteArrayOutputStream()));
+				RunHistory writer = RunHistory.open(file);
+				writer.startRun("another run");
+				writer.record(newTest("/tests/b.html"));
+				writer.close();
+				report.runs(HistoryReport.DEFAULT_COUNT);
+				report.slowest(HistoryReport.DEFAULT_COUNT, false);
+				report.regressions(1);
+				report.flaky(HistoryReport.DEFAULT_COUNT);
+				expect(Integer.valueOf(1), Integer.valueOf(reader.getRunCount()));
+			}
+		});
+		checks.add(new Check("shard/durations keyed the same under any checkout") {
+			void run() throws Exception {
+				File manifestFile = File.createTempFile("manifest", ".txt");
+				manifestFile.deleteOnExit();
+				File historyFile = File.createTempFile("history", ".bin");
+				historyFile.deleteOnExit();
+				historyFile.delete();
+				RunManifest manifest = new RunManifest(manifestFile);
+				RunHistory history = RunHistory.open(historyFile);
+				history.startRun("run");
+				for (int row = 1; row <= 2; row++) {
+					SeleniumHtmlClient.Test test = newTest("/agent1/checkout/tests/login.html");
+					test.label = "login\n  page[" + row + "]";
+					test.parameters = new HashMap<String, String>();
+					manifest.record(test, "*mock", null);
+					history.record(test);
+				}
+				manifest.save();
+				history.close();
+				RunManifest loaded = new RunManifest(manifestFile);
+				loaded.load();
+				SeleniumHtmlClient.Test elsewhere = newTest("/agent2/work/tests/login.html");
+				elsewhere.label = "login page[3]";
+				elsewhere.parameters = new HashMap<String, String>();
+				String key = Shard.durationKey(elsewhere);
+				expect(Long.valueOf(10), loaded.durations().get(key));
+				expect(Long.valueOf(10), RunHistory.open(historyFile).testDurations().get(key));
+			}
+		});
+		checks.add(new Check("keepAlive/connection dropped while idle is replaced") {
+			void run() throws Exception {
+				ScriptedServer server = new ScriptedServer(new String[][] {
+					{ "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" },
+					{ "HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nOK,2" } });
+				final int connects[] = new int[1];
+				KeepAliveTransport transport = new KeepAliveTransport("127.0.0.1", server.getPort()) {
+					void connect() throws IOException {
+						connects[0]++;
+						super.connect();
+					}
+				};
+				try {
+					expect("OK", transport.execute("cmd=open"));
+					expect("OK,2", transport.execute("cmd=click"));
+					expect(2, connects[0]);
+				} finally {
+					transport.close();
+					server.finish();
+				}
+			}
+		});
+		checks.add(new Check("keepAlive/connection lost mid-response is not resent") {
+			void run() throws Exception {
+				ScriptedServer server = new ScriptedServer(new String[][] {
+					{ "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK",
+						"HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nOK" } });
+				final int connects[] = new int[1];
+				KeepAliveTransport transport = new KeepAliveTransport("127.0.0.1", server.getPort()) {
+					void connect() throws IOException {
+						connects[0]++;
+						super.connect();
+					}
+				};
+				try {
+					expect("OK", transport.execute("cmd=open"));
+					try {
+						transport.execute("cmd=click");
+						throw new IllegalStateException("truncated response accepted");
+					} catch (IOException e) {
+						expect("truncated response", e.getMessage());
+					}
+					expect(1, connects[0]);
+				} finally {
+					transport.close();
+					server.finish();
+				}
+			}
+		});
+		checks.add(new Check("json/reads back one object") {
+			void run() {
+				Map<String, Object> object = JsonParser.parseObject(" {\"a\": [1, 2.5], \"b\": {}} ");
+				expect(Arrays.asList(new Object[] { Long.valueOf(1), Double.valueOf(2.5) }), object.get("a"));
+				expect(new HashMap<String, Object>(), object.get("b"));
+				for (String text : new String[] { "[1]", "{} {}", "" }) {
+					try {
+						JsonParser.parseObject(text);
+						throw new IllegalStateException("accepted " + text);
+					} catch (IllegalArgumentException e) {
+						// expected
+					}
+				}
+			}
+		});
+		checks.add(new Check("discovery/link in a test is not a suite") {
+			void run() {
+				expect(Boolean.FALSE, Boolean.valueOf(TestDiscovery.isSuite(
+					"<html><body><table><tr><td colspan=\"3\">t</td></tr>"
+					+ "<tr><td>open</td><td>/</td><td>see <a href=\"x.html\">x</a></td></tr></table>")));
+			}
+		});
+		checks.add(new Check("discovery/suite rows start with a link") {
+			void run() {
+				expect(Boolean.TRUE, Boolean.valueOf(TestDiscovery.isSuite(
+					"<html><body><table><tr><td><b>s</b></td></tr>\n"
+					+ "<tr>\n <td><A HREF=\"x.html\">x</A></td></tr></table>")));
+				expect(Boolean.TRUE, Boolean.valueOf(TestDiscovery.isSuite(
+					"<table id=\"suiteTable\"><tr><td>s</td></tr></table>")));
+			}
+		});
+		return checks;
+	}
+
+	/**
+	 * A command processor with an accessor cache whose server answers
+	 * every command with a different value, unless given a response or a
+	 * failure to use instead.
+	 */
+	static class CountingProcessor extends SeleniumHtmlClient.HtmlCommandProcessor {
+		int calls;
+		String response;
+		RuntimeException failure;
+
+		CountingProcessor() {
+			super("localhost", 4444, "*mock", "http://localhost/", true);
+			this.cache = new AccessorCache();
+		}
+
+		public String executeCommandOnServlet(String command) {
+			this.calls++;
+			if (this.failure != null) {
+				throw this.failure;
+			}
+			return this.response != null ? this.response : "OK," + this.calls;
+		}
+	}
+
+	/**
+	 * Returns a new history file holding one run of one test.
+	 */
+	static File newHistory(String testPath) throws IOException {
+		File file = File.createTempFile("history", ".bin");
+		file.deleteOnExit();
+		file.delete();
+		RunHistory history = RunHistory.open(file);
+		history.startRun("run");
+		history.record(newTest(testPath));
+		history.close();
+		return file;
+	}
+
+	static SeleniumHtmlClient.Test newTest(String path) {
+		SeleniumHtmlClient.Test test = new SeleniumHtmlClient.Test();
+		test.file = new File(path);
+		test.result = true;
+		test.time = 10;
+		return test;
+	}
+
+	/**
+	 * Returns a farm of servers a:1 and b:2, where sessions on a fail to
+	 * start with the given failure.
+	 */
+	static ServerFarm newFarm(final RuntimeException failure) {
+		ServerFarm farm = ServerFarm.parse("a:1,b:2");
+		farm.setFactory(new SessionPool.Factory() {
+			public CommandProcessor newSession(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+				CountingProcessor session = new CountingProcessor();
+				session.response = "OK,session";
+				if (host.equals("a")) {
+					session.failure = failure;
+				}
+				return session;
+			}
+		});
+		return farm;
+	}
+
+	/**
+	 * A loopback HTTP server that answers each connection's requests with the
+	 * given raw replies in turn, closing the connection after its last reply
+	 * and the server after the last connection.
+	 */
+	static class ScriptedServer extends Thread {
+		final ServerSocket server;
+		final String replies[][];
+		Exception failure;
+
+		ScriptedServer(String replies[][]) throws IOException {
+			this.server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			this.replies = replies;
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return this.server.getLocalPort();
+		}
+
+		public void run() {
+			try {
+				for (String connection[] : this.replies) {
+					Socket socket = this.server.accept();
+					InputStream in = socket.getInputStream();
+					OutputStream out = socket.getOutputStream();
+					for (String reply : connection) {
+						readRequest(in);
+						out.write(reply.getBytes("UTF-8"));
+						out.flush();
+					}
+					socket.close();
+				}
+			} catch (Exception e) {
+				this.failure = e;
+			} finally {
+				try {
+					this.server.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+
+		static void readRequest(InputStream in) throws IOException {
+			int contentLength = 0;
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c == '\r') {
+					continue;
+				}
+				if (c != '\n') {
+					line.append((char) c);
+					continue;
+				}
+				if (line.length() == 0) {
+					break;
+				}
+				if (line.toString().toLowerCase().startsWith("content-length:")) {
+					contentLength = Integer.parseInt(line.substring(15).trim());
+				}
+				line.setLength(0);
+			}
+			while (contentLength > 0 && in.read() != -1) {
+				contentLength--;
+			}
+		}
+
+		void finish() throws Exception {
+			this.server.close();
+			join(5000);
+			if (this.failure != null && !(this.failure instanceof SocketException)) {
+				throw this.failure;
+			}
+		}
+	}
+
+	static SeleniumHtmlClient newPooledClient(SessionPool pool) {
+		SeleniumHtmlClient client = new SeleniumHtmlClient();
+		client.setSessionPool(pool);
+		client.setCacheAccessors(true);
+		return client;
+	}
+
+	/**
+	 * Returns the plan of a test made of three batchable verify commands.
+	 */
+	static TestPlan newVerifyPlan(SeleniumHtmlClient client) throws Exception {
+		File file = File.createTempFile("verify", ".html");
+		file.deleteOnExit();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		out.println("<html><head><title>verify</title></head><body><table>");
+		out.println("<tr><td colspan=\"3\">verify</td></tr>");
+		out.println("<tr><td>verifyTitle</td><td>Home</td><td></td></tr>");
+		out.println("<tr><td>verifyTextPresent</td><td>Welcome</td><td></td></tr>");
+		out.println("<tr><td>verifyElementPresent</td><td>name</td><td></td></tr>");
+		out.println("</table></body></html>");
+		out.close();
+		return TestPlan.compile(client.parseDocument(file.toString()));
+	}
+
+	static void expect(Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new IllegalStateException("expected " + expected + " but got " + actual);
+		}
+	}
+}
@@ -1,4 +1,9 @@
 #!/bin/sh
 CLASSPATH=lib/selenium-html-client-driver-0.2.jar:lib/selenium-java-client-driver-1.0.1.jar:lib/nekohtml-1.9.8.jar:lib/xercesImpl-2.8.1.jar:lib/xml-apis-1.0.b2.jar
+# --browser *htmlunit also needs HtmlUnit's own dependencies, listed in HTMLUNIT_CLASSPATH
+CLASSPATH=$CLASSPATH:lib/htmlunit-2.2.jar${HTMLUNIT_CLASSPATH:+:$HTMLUNIT_CLASSPATH}
+if [ -n "$SELENIUM_HTML_DAEMON_PORT" ]; then
+	# hand the job to a daemon started with --daemon
+	exec java -cp lib/selenium-html-client-driver-0.2.jar com.snowmochi.selenium.DaemonClient --daemon-port $SELENIUM_HTML_DAEMON_PORT $@
+fi
 java -cp $CLASSPATH com.snowmochi.selenium.SeleniumHtmlClient $@
-
@@ -0,0 +1,196 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+
+/**
+ * Evaluates a run of read-only verify/assert commands in the browser with a
+ * single getEval, instead of one RC round-trip per command.  The generated
+ * script calls the same accessors and PatternMatcher that Selenium Core
+ * uses for the individual commands, and returns one length-prefixed
+ * entry per command: "P" for a pass, "F" plus a message for a mismatch, and
+ * "E" plus a message when the accessor itself threw.
+ */
+class AccessorBatch {
+	static final int STRING = 0;
+	static final int BOOLEAN = 1;
+	static final int MAX_SIZE = 50;
+
+	static class Accessor {
+		final int type;
+		final int locatorCount;
+
+		Accessor(int type, int locatorCount) {
+			this.type = type;
+			this.locatorCount = locatorCount;
+		}
+	}
+
+	// Accessors without side effects; getAlert and friends are left out since they consume the dialog
+	static final Map<String, Accessor> ACCESSORS = new HashMap<String, Accessor>();
+	static {
+		for (String name : new String[] { "Title", "Location", "BodyText", "HtmlSource" }) {
+			ACCESSORS.put(name, new Accessor(STRING, 0));
+		}
+		for (String name : new String[] { "Text", "Value", "Attribute", "Expression", "Table",
+				"CookieByName", "SelectedLabel", "SelectedValue", "SelectedIndex", "SelectedId", "XpathCount" }) {
+			ACCESSORS.put(name, new Accessor(STRING, 1));
+		}
+		for (String name : new String[] { "AlertPresent", "ConfirmationPresent", "PromptPresent" }) {
+			ACCESSORS.put(name, new Accessor(BOOLEAN, 0));
+		}
+		for (String name : new String[] { "ElementPresent", "TextPresent", "Visible", "Editable",
+				"Checked", "SomethingSelected", "CookiePresent" }) {
+			ACCESSORS.put(name, new Accessor(BOOLEAN, 1));
+		}
+	}
+
+	/**
+	 * A verify/assert command broken down into the accessor it checks.
+	 */
+	static class Check {
+		String accessor;
+		Accessor kind;
+		boolean negated;
+		String args[];
+	}
+
+	static Check parse(String cmd, String args[]) {
+		String name;
+		if (cmd.startsWith("verify")) {
+			name = cmd.substring("verify".length());
+		} else if (cmd.startsWith("assert")) {
+			name = cmd.substring("assert".length());
+		} else {
+			return null;
+		}
+		Check check = new Check();
+		if (name.startsWith("Not")) {
+			check.negated = true;
+			name = name.substring("Not".length());
+		} else if (name.endsWith("NotPresent")) {
+			check.negated = true;
+			name = name.substring(0, name.length() - "NotPresent".length()) + "Present";
+		}
+		check.accessor = name;
+		check.kind = ACCESSORS.get(name);
+		check.args = args;
+		if (check.kind == null || args == null) {
+			return null;
+		}
+		int required = check.kind.locatorCount + (check.kind.type == STRING ? 1 : 0);
+		if (args.length < required) {
+			return null;
+		}
+		for (String arg : args) {
+			// leave variable expansion and javascript{} to the server
+			if (arg.indexOf("${") >= 0 || arg.indexOf("javascript{") >= 0) {
+				return null;
+			}
+		}
+		return check;
+	}
+
+	/**
+	 * Returns whether the accessor is called as isX rather than getX.
+	 */
+	static boolean isBooleanAccessor(String name) {
+		Accessor accessor = ACCESSORS.get(name);
+		if (accessor != null) {
+			return accessor.type == BOOLEAN;
+		}
+		return name.endsWith("Present") || name.equals("Ordered");
+	}
+
+	static String script(List<Check> checks) {
+		StringBuilder script = new StringBuilder();
+		script.append("(function(sel) { var r = [];\n");
+		for (Check check : checks) {
+			StringBuilder call = new StringBuilder();
+			call.append("sel.").append(check.kind.type == STRING ? "get" : "is").append(check.accessor).append('(');
+			for (int i = 0; i < check.kind.locatorCount; i++) {
+				if (i > 0) call.append(", ");
+				call.append(quote(check.args[i]));
+			}
+			call.append(')');
+			script.append("try { var v = ").append(call).append("; ");
+			if (check.kind.type == STRING) {
+				String pattern = quote(check.args[check.kind.locatorCount]);
+				script.append("v = String(v); var m = PatternMatcher.matches(").append(pattern).append(", v); ");
+				script.append("r.push(m != ").append(check.negated).append(" ? 'P' : 'FActual value \\'' + v + '\\' ")
+					.append(check.negated ? "did" : "did not").append(" match \\'' + ").append(pattern).append(" + '\\''); ");
+			} else {
+				script.append("r.push(v != ").append(check.negated).append(" ? 'P' : 'F' + v); ");
+			}
+			script.append("} catch (e) { r.push('E' + (e.message || e)); }\n");
+		}
+		script.append("var s = ''; for (var i = 0; i < r.length; i++) { s += r[i].length + ':' + r[i]; } return s; })(this)");
+		return script.toString();
+	}
+
+	/**
+	 * Turns the encoded eval result back into one RC-style result string per
+	 * check, or returns null if the result is not what the script produces.
+	 */
+	static String[] results(String encoded, int count) {
+		String results[] = new String[count];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			int colon = encoded.indexOf(':', position);
+			if (colon < 0) {
+				return null;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(encoded.substring(position, colon));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (length < 1 || colon + 1 + length > encoded.length()) {
+				return null;
+			}
+			char status = encoded.charAt(colon + 1);
+			String message = encoded.substring(colon + 2, colon + 1 + length);
+			if (status == 'P') {
+				results[i] = "OK";
+			} else if (status == 'F' || status == 'E') {
+				results[i] = "ERROR: " + message;
+			} else {
+				return null;
+			}
+			position = colon + 1 + length;
+		}
+		return position == encoded.length() ? results : null;
+	}
+
+	static String quote(String text) {
+		StringBuilder quoted = new StringBuilder(text.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"': quoted.append("\\\""); break;
+			case '\\': quoted.append("\\\\"); break;
+			case '\n': quoted.append("\\n"); break;
+			case '\r': quoted.append("\\r"); break;
+			case '\u2028': quoted.append("\\u2028"); break;
+			case '\u2029': quoted.append("\\u2029"); break;
+			default: quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
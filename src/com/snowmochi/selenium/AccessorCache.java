@@ -0,0 +1,93 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+
+/**
+ * Remembers the results of read-only accessor commands for one session
+ * until the page may have changed.  Any command that is not a cacheable
+ * read ends the page epoch and empties the cache, so a repeated getTitle
+ * or verifyText on a page nothing has touched since costs no round-trip.
+ * Only the side-effect-free accessors that batching knows are cached, and
+ * only their successful results.
+ */
+class AccessorCache {
+	static final int MAX_ENTRIES = 1000;
+	static final String HIT = "hit";
+	static final String MISS = "miss";
+
+	final Map<String, String> results = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Returns whether a command only reads one of the accessors known to
+	 * have no side effects.  Arguments with javascript{...} are evaluated
+	 * afresh by the server on every call, so they are never cached.
+	 */
+	static boolean isCacheable(String cmd, String args[]) {
+		String accessor;
+		if (cmd.startsWith("get")) {
+			accessor = cmd.substring("get".length());
+		} else if (cmd.startsWith("is")) {
+			accessor = cmd.substring("is".length());
+		} else if (cmd.startsWith("verify") || cmd.startsWith("assert")) {
+			accessor = cmd.substring("verify".length());
+			if (accessor.startsWith("Not")) {
+				accessor = accessor.substring("Not".length());
+			}
+		} else {
+			return false;
+		}
+		if (!AccessorBatch.ACCESSORS.containsKey(accessor)) {
+			return false;
+		}
+		for (String arg : args) {
+			if (arg.indexOf("javascript{") >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String key(String cmd, String args[]) {
+		StringBuilder key = new StringBuilder(cmd);
+		for (String arg : args) {
+			key.append('\0').append(arg);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the result from earlier in this page epoch, or null.
+	 */
+	public String get(String cmd, String args[]) {
+		return this.results.get(key(cmd, args));
+	}
+
+	public void put(String cmd, String args[], String result) {
+		this.results.put(key(cmd, args), result);
+	}
+
+	/**
+	 * Starts a new page epoch.
+	 */
+	public void invalidate() {
+		this.results.clear();
+	}
+}
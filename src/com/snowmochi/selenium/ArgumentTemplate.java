@@ -0,0 +1,94 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+
+/**
+ * A command argument split into literal text and ${name} references, so
+ * that stored variables can be substituted without rescanning the argument
+ * every time the step runs.  References to variables that have not been
+ * stored are left as they are, for the browser to expand if it can.
+ */
+class ArgumentTemplate {
+	// literal text and variable names, alternating, starting with text
+	final String parts[];
+
+	ArgumentTemplate(String parts[]) {
+		this.parts = parts;
+	}
+
+	/**
+	 * Returns the template for an argument, or null if it references no
+	 * variables and can be used as it is.
+	 */
+	static ArgumentTemplate compile(String arg) {
+		if (arg.indexOf("${") < 0) {
+			return null;
+		}
+		List<String> parts = new ArrayList<String>();
+		int position = 0;
+		StringBuilder text = new StringBuilder();
+		while (position < arg.length()) {
+			int start = arg.indexOf("${", position);
+			int end = start < 0 ? -1 : arg.indexOf('}', start + 2);
+			if (end < 0) {
+				text.append(arg.substring(position));
+				break;
+			}
+			text.append(arg, position, start);
+			parts.add(text.toString());
+			parts.add(arg.substring(start + 2, end));
+			text.setLength(0);
+			position = end + 1;
+		}
+		parts.add(text.toString());
+		if (parts.size() == 1) {
+			return null;
+		}
+		return new ArgumentTemplate(parts.toArray(new String[parts.size()]));
+	}
+
+	static ArgumentTemplate[] compile(String args[]) {
+		ArgumentTemplate templates[] = null;
+		for (int i = 0; i < args.length; i++) {
+			ArgumentTemplate template = compile(args[i]);
+			if (template != null) {
+				if (templates == null) {
+					templates = new ArgumentTemplate[args.length];
+				}
+				templates[i] = template;
+			}
+		}
+		return templates;
+	}
+
+	public String expand(Map<String, String> variables) {
+		StringBuilder expanded = new StringBuilder();
+		for (int i = 0; i < this.parts.length; i++) {
+			if (i % 2 == 0) {
+				expanded.append(this.parts[i]);
+			} else {
+				String value = variables.get(this.parts[i]);
+				if (value != null) {
+					expanded.append(value);
+				} else {
+					expanded.append("${").append(this.parts[i]).append('}');
+				}
+			}
+		}
+		return expanded.toString();
+	}
+}
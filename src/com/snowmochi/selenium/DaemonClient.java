@@ -0,0 +1,87 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Sends a command line to a running daemon (SeleniumHtmlClient --daemon)
+ * and prints its output as it arrives, exiting with the job's status.
+ * File arguments are made absolute first, since the daemon may have been
+ * started in another directory.
+ *
+ * DaemonClient [--daemon-port n] [SeleniumHtmlClient options]
+ * DaemonClient [--daemon-port n] --shutdown-daemon
+ */
+public class DaemonClient {
+	static final Set<String> PATH_OPTIONS = new HashSet<String>(Arrays.asList(new String[] {
+		"--test", "--testsuite", "--testdir", "--out", "--metrics", "--plan-cache",
+		"--manifest", "--history", "--capture-failures" }));
+
+	public static void main(String args[]) throws IOException {
+		int port = DriverDaemon.DEFAULT_PORT;
+		List<String> forwarded = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--daemon-port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (PATH_OPTIONS.contains(args[i]) && i + 1 < args.length) {
+				forwarded.add(args[i]);
+				forwarded.add(new File(args[++i]).getAbsolutePath());
+			} else {
+				forwarded.add(args[i]);
+			}
+		}
+		Socket socket;
+		try {
+			socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+		} catch (ConnectException e) {
+			System.err.println("No daemon on port " + port + "; start one with SeleniumHtmlClient --daemon");
+			System.exit(2);
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(forwarded.size());
+			for (String arg : forwarded) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte buffer[] = new byte[8192];
+			while (true) {
+				int type = in.readByte();
+				int length = in.readInt();
+				if (type == DriverDaemon.EXIT) {
+					System.out.flush();
+					System.exit(in.readInt());
+				}
+				if (length > buffer.length) {
+					buffer = new byte[length];
+				}
+				in.readFully(buffer, 0, length);
+				PrintStream target = type == DriverDaemon.ERR ? System.err : System.out;
+				target.write(buffer, 0, length);
+				target.flush();
+			}
+		} catch (EOFException e) {
+			System.err.println("Daemon closed the connection");
+			System.exit(2);
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads the rows of a CSV or TSV data file one at a time.  The first row
+ * names the columns.  CSV fields may be quoted, with "" for a quote and
+ * line breaks allowed inside quotes; .tsv and .tab files are split on tabs
+ * with no quoting.  Blank lines are skipped, missing fields are empty, and
+ * fields beyond the named columns are ignored.
+ */
+class DataTable {
+	final File file;
+	final BufferedReader in;
+	final char separator;
+	final boolean quoting;
+	String columns[];
+	int line;
+
+	DataTable(File file) throws IOException {
+		this.file = file;
+		String name = file.getName().toLowerCase();
+		this.quoting = !(name.endsWith(".tsv") || name.endsWith(".tab"));
+		this.separator = this.quoting ? ',' : '\t';
+		this.in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			List<String> header = readRecord();
+			if (header == null) {
+				throw new IOException(file + " has no header row");
+			}
+			if (header.get(0).length() > 0 && header.get(0).charAt(0) == '\uFEFF') {
+				// byte order mark
+				header.set(0, header.get(0).substring(1));
+			}
+			this.columns = new String[header.size()];
+			for (int i = 0; i < this.columns.length; i++) {
+				this.columns[i] = header.get(i).trim();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public String[] getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * Returns the next row by column name, or null at the end of the file.
+	 */
+	public Map<String, String> next() throws IOException {
+		List<String> fields = readRecord();
+		if (fields == null) {
+			return null;
+		}
+		Map<String, String> row = new LinkedHashMap<String, String>();
+		for (int i = 0; i < this.columns.length; i++) {
+			row.put(this.columns[i], i < fields.size() ? fields.get(i) : "");
+		}
+		return row;
+	}
+
+	List<String> readRecord() throws IOException {
+		String text;
+		do {
+			text = this.in.readLine();
+			if (text == null) {
+				return null;
+			}
+			this.line++;
+		} while (text.trim().length() == 0);
+		List<String> fields = new ArrayList<String>();
+		if (!this.quoting) {
+			int start = 0;
+			int end;
+			while ((end = text.indexOf(this.separator, start)) >= 0) {
+				fields.add(text.substring(start, end));
+				start = end + 1;
+			}
+			fields.add(text.substring(start));
+			return fields;
+		}
+		int startLine = this.line;
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int i = 0;
+		while (true) {
+			if (i == text.length()) {
+				if (!quoted) {
+					break;
+				}
+				// a quoted field runs on to the next line
+				text = this.in.readLine();
+				if (text == null) {
+					throw new IOException(this.file + ":" + startLine + ": unterminated quoted field");
+				}
+				this.line++;
+				field.append('\n');
+				i = 0;
+				continue;
+			}
+			char c = text.charAt(i++);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i < text.length() && text.charAt(i) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == this.separator) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	public void close() {
+		try {
+			this.in.close();
+		} catch (IOException e) {
+			// nothing more is read from it
+		}
+	}
+}
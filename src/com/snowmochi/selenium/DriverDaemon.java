@@ -0,0 +1,149 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Keeps one JVM running with its parsers loaded, its compiled plans cached
+ * and its browser sessions idling in a pool, and runs command lines sent
+ * by DaemonClient over a local socket.  Jobs run one at a time; while a
+ * job runs, System.out and System.err are sent back to its client as they
+ * are written, followed by the exit status.
+ *
+ * Requests are an int argument count followed by the arguments as UTF
+ * strings.  Responses are frames of a type byte and an int length: OUT
+ * and ERR frames carry output, and an EXIT frame carries the status.
+ */
+class DriverDaemon {
+	static final int DEFAULT_PORT = 4545;
+	static final int OUT = 'O';
+	static final int ERR = 'E';
+	static final int EXIT = 'X';
+	static final String SHUTDOWN = "--shutdown-daemon";
+
+	final int port;
+	final TestPlanCache planCache = new TestPlanCache();
+	final SessionPool sessionPool;
+
+	DriverDaemon(int port) {
+		this.port = port;
+		this.sessionPool = new SessionPool(SeleniumHtmlClient.newSessionFactory());
+	}
+
+	public void serve() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(this.port, 50, InetAddress.getByName("127.0.0.1"));
+		PrintStream console = System.out;
+		console.println("Selenium HTML client daemon listening on port " + serverSocket.getLocalPort());
+		try {
+			boolean running = true;
+			while (running) {
+				Socket socket = serverSocket.accept();
+				try {
+					running = handle(socket, console);
+				} catch (IOException e) {
+					System.err.println("Warning: Dropped daemon job: " + e.getMessage());
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			serverSocket.close();
+			this.sessionPool.closeAll();
+		}
+		console.println("Daemon stopped");
+	}
+
+	/**
+	 * Runs one job, returning false if it asked the daemon to stop.
+	 */
+	boolean handle(Socket socket, PrintStream console) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		String args[] = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (args.length == 1 && args[0].equals(SHUTDOWN)) {
+			writeExit(out, 0);
+			return false;
+		}
+		console.println("Running " + Arrays.asList(args));
+		PrintStream savedOut = System.out;
+		PrintStream savedErr = System.err;
+		PrintStream jobOut = new PrintStream(new FrameOutputStream(out, OUT), true);
+		PrintStream jobErr = new PrintStream(new FrameOutputStream(out, ERR), true);
+		int status;
+		System.setOut(jobOut);
+		System.setErr(jobErr);
+		try {
+			status = SeleniumHtmlClient.run(args, this);
+		} finally {
+			jobOut.flush();
+			jobErr.flush();
+			System.setOut(savedOut);
+			System.setErr(savedErr);
+		}
+		writeExit(out, status);
+		return true;
+	}
+
+	static void writeExit(DataOutputStream out, int status) throws IOException {
+		synchronized (out) {
+			out.writeByte(EXIT);
+			out.writeInt(4);
+			out.writeInt(status);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Wraps everything written to it in frames of one type.  Closing it only
+	 * flushes, since the job's results writer closes System.out when done.
+	 */
+	static class FrameOutputStream extends OutputStream {
+		final DataOutputStream out;
+		final int type;
+
+		FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte bytes[], int offset, int length) throws IOException {
+			synchronized (this.out) {
+				this.out.writeByte(this.type);
+				this.out.writeInt(length);
+				this.out.write(bytes, offset, length);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized (this.out) {
+				this.out.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import com.thoughtworks.selenium.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Saves a screenshot and the page source when a command fails.  The test
+ * thread only makes the two RC calls; decoding, compressing and writing
+ * happen on a single background thread with a short queue, and captures
+ * are dropped rather than waited for when the queue is full.  Once the
+ * files written add up to the size limit, no more captures are taken.
+ */
+class FailureCapture {
+	static final int QUEUE_SIZE = 16;
+	static final long DEFAULT_LIMIT = 100L << 20;
+
+	final File directory;
+	long limit = DEFAULT_LIMIT;
+	boolean verbose;
+	final AtomicLong used = new AtomicLong();
+	final AtomicInteger sequence = new AtomicInteger();
+	final AtomicBoolean warned = new AtomicBoolean();
+	final ThreadPoolExecutor executor;
+
+	FailureCapture(File directory) {
+		this.directory = directory;
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "failure-capture");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	public void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Captures the page after the given step failed, and points the command
+	 * at the files it will be written to.
+	 */
+	public void capture(CommandProcessor processor, Test test, int step, Command command) {
+		if (this.used.get() >= this.limit) {
+			warnFull();
+			return;
+		}
+		String screenshot = fetch(processor, "captureEntirePageScreenshotToString", new String[] { "" });
+		if (screenshot == null) {
+			// only Firefox can capture the entire page
+			screenshot = fetch(processor, "captureScreenshotToString", new String[0]);
+		}
+		String source = fetch(processor, "getHtmlSource", new String[0]);
+		if (screenshot == null && source == null) {
+			return;
+		}
+		final long estimate = (screenshot == null ? 0 : screenshot.length() * 3L / 4)
+			+ (source == null ? 0 : source.length());
+		if (this.used.addAndGet(estimate) > this.limit) {
+			this.used.addAndGet(-estimate);
+			warnFull();
+			return;
+		}
+		String name = String.format("%04d-%s-%d", this.sequence.incrementAndGet(),
+			JUnitXmlReporter.stripExtension(test.file.getName()), step + 1);
+		final File screenshotFile = screenshot == null ? null : new File(this.directory, name + ".png");
+		final File sourceFile = source == null ? null : new File(this.directory, name + ".html.gz");
+		final String encodedScreenshot = screenshot;
+		final String pageSource = source;
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					write(screenshotFile, encodedScreenshot, sourceFile, pageSource, estimate);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.used.addAndGet(-estimate);
+			if (this.verbose) {
+				System.out.println("Capture queue full; dropping capture for " + name);
+			}
+			return;
+		}
+		command.screenshot = screenshotFile == null ? null : screenshotFile.getPath();
+		command.source = sourceFile == null ? null : sourceFile.getPath();
+	}
+
+	void warnFull() {
+		if (!this.warned.getAndSet(true)) {
+			System.err.println("Warning: Failure captures in " + this.directory + " reached "
+				+ (this.limit >> 20) + " MB; not capturing any more");
+		}
+	}
+
+	static String fetch(CommandProcessor processor, String cmd, String args[]) {
+		try {
+			String result = processor.doCommand(cmd, args);
+			return result.startsWith("OK,") ? result.substring("OK,".length()) : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	void write(File screenshotFile, String screenshot, File sourceFile, String source, long estimate) {
+		long written = 0;
+		try {
+			this.directory.mkdirs();
+			if (screenshotFile != null) {
+				byte png[] = decodeBase64(screenshot);
+				OutputStream out = new FileOutputStream(screenshotFile);
+				try {
+					out.write(png);
+				} finally {
+					out.close();
+				}
+				written += png.length;
+			}
+			if (sourceFile != null) {
+				Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(sourceFile)), "UTF-8");
+				try {
+					out.write(source);
+				} finally {
+					out.close();
+				}
+				written += sourceFile.length();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Could not save failure capture: " + e.getMessage());
+		}
+		// settle the estimate against what actually went to disk
+		this.used.addAndGet(written - estimate);
+	}
+
+	/**
+	 * Waits for queued captures to be written.
+	 */
+	public void close() throws InterruptedException {
+		this.executor.shutdown();
+		this.executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	static byte[] decodeBase64(String text) {
+		byte decoded[] = new byte[text.length() * 3 / 4 + 3];
+		int length = 0;
+		int bits = 0;
+		int bitCount = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int value;
+			if (c >= 'A' && c <= 'Z') {
+				value = c - 'A';
+			} else if (c >= 'a' && c <= 'z') {
+				value = c - 'a' + 26;
+			} else if (c >= '0' && c <= '9') {
+				value = c - '0' + 52;
+			} else if (c == '+') {
+				value = 62;
+			} else if (c == '/') {
+				value = 63;
+			} else {
+				// padding and line breaks
+				continue;
+			}
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				decoded[length++] = (byte) (bits >> bitCount);
+			}
+		}
+		byte result[] = new byte[length];
+		System.arraycopy(decoded, 0, result, 0, length);
+		return result;
+	}
+}
@@ -0,0 +1,294 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Answers questions about a run history written with --history:
+ *
+ * HistoryReport historyfile runs [count]         the latest runs with their pass/fail counts
+ * HistoryReport historyfile slowest [count]      tests with the highest mean duration
+ * HistoryReport historyfile commands [count]     commands with the highest mean duration
+ * HistoryReport historyfile regressions [runs]   tests and commands that got slower in the
+ *                                                last runs compared to as many runs before
+ * HistoryReport historyfile flaky [count]        tests whose result flips between runs
+ */
+public class HistoryReport {
+	static final int DEFAULT_COUNT = 20;
+
+	final RunHistory history;
+	// where the first pass stopped; later passes stop there too, since a run may be appending
+	final long end;
+	final PrintStream out;
+
+	HistoryReport(RunHistory history, long end, PrintStream out) {
+		this.history = history;
+		this.end = end;
+		this.out = out;
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: HistoryReport historyfile runs|slowest|commands|regressions|flaky [count]");
+			System.exit(1);
+		}
+		RunHistory history = new RunHistory(new File(args[0]));
+		// a first pass picks up the names and the number of runs
+		long end = history.scan(null);
+		HistoryReport report = new HistoryReport(history, end, System.out);
+		int count = args.length > 2 ? Integer.parseInt(args[2]) : -1;
+		if (args[1].equals("runs")) {
+			report.runs(count < 0 ? DEFAULT_COUNT : count);
+		} else if (args[1].equals("slowest")) {
+			report.slowest(count < 0 ? DEFAULT_COUNT : count, false);
+		} else if (args[1].equals("commands")) {
+			report.slowest(count < 0 ? DEFAULT_COUNT : count, true);
+		} else if (args[1].equals("regressions")) {
+			report.regressions(count < 0 ? 1 : count);
+		} else if (args[1].equals("flaky")) {
+			report.flaky(count < 0 ? DEFAULT_COUNT : count);
+		} else {
+			System.err.println("Unknown query " + args[1]);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Per-name duration totals, indexed by name id.
+	 */
+	static class Durations {
+		final long total[];
+		final int count[];
+		final int max[];
+
+		Durations(int names) {
+			this.total = new long[names];
+			this.count = new int[names];
+			this.max = new int[names];
+		}
+
+		void add(int name, int millis) {
+			this.total[name] += millis;
+			this.count[name]++;
+			if (millis > this.max[name]) {
+				this.max[name] = millis;
+			}
+		}
+
+		double mean(int name) {
+			return this.count[name] == 0 ? 0 : (double) this.total[name] / this.count[name];
+		}
+	}
+
+	void runs(int limit) throws IOException {
+		final int first = Math.max(0, this.history.getRunCount() - limit);
+		final int total = this.history.getRunCount() - first;
+		final long times[] = new long[total];
+		final int names[] = new int[total];
+		final int tests[] = new int[total];
+		final int failures[] = new int[total];
+		final long millis[] = new long[total];
+		this.history.scan(new RunHistory.Visitor() {
+			public void run(int run, long time, int name) {
+				if (run >= first) {
+					times[run - first] = time;
+					names[run - first] = name;
+				}
+			}
+
+			public void test(int run, int name, boolean passed, int duration) {
+				if (run >= first) {
+					tests[run - first]++;
+					failures[run - first] += passed ? 0 : 1;
+					millis[run - first] += duration;
+				}
+			}
+
+			public void label(int run, int test, int name) {
+			}
+
+			public void command(int run, int test, int name, int status, int duration) {
+			}
+		}, this.end);
+		for (int i = 0; i < total; i++) {
+			this.out.println(String.format(Locale.US, "#%d  %tF %<tT  %5d tests  %4d failed  %8.1f s  %s", first + i,
+				new Date(times[i]), tests[i], failures[i], millis[i] / 1000.0, this.history.getName(names[i])));
+		}
+	}
+
+	void slowest(int limit, final boolean commands) throws IOException {
+		final Durations durations = new Durations(this.history.getNameCount());
+		this.history.scan(new RunHistory.Visitor() {
+			public void run(int run, long time, int name) {
+			}
+
+			public void test(int run, int name, boolean passed, int millis) {
+				if (!commands) durations.add(name, millis);
+			}
+
+			public void label(int run, int test, int name) {
+			}
+
+			public void command(int run, int test, int name, int status, int millis) {
+				if (commands) durations.add(name, millis);
+			}
+		}, this.end);
+		List<Integer> ranked = ranked(durations.count, new Ranking() {
+			public double score(int name) {
+				return durations.mean(name);
+			}
+		});
+		this.out.println("   mean ms     max ms      count  " + (commands ? "command" : "test"));
+		for (int i = 0; i < ranked.size() && i < limit; i++) {
+			int name = ranked.get(i).intValue();
+			this.out.println(String.format(Locale.US, "%10.1f %10d %10d  %s",
+				durations.mean(name), durations.max[name], durations.count[name], this.history.getName(name)));
+		}
+	}
+
+	/**
+	 * Compares mean durations over the last runs with the same number of
+	 * runs before them, listing what got slower by the largest margin.
+	 */
+	void regressions(int runs) throws IOException {
+		int runCount = this.history.getRunCount();
+		if (runCount < 2 * runs) {
+			this.out.println("Need at least " + (2 * runs) + " runs; the history has " + runCount);
+			return;
+		}
+		final int split = runCount - runs;
+		final int start = split - runs;
+		int nameCount = this.history.getNameCount();
+		final Durations testsBefore = new Durations(nameCount);
+		final Durations testsAfter = new Durations(nameCount);
+		final Durations commandsBefore = new Durations(nameCount);
+		final Durations commandsAfter = new Durations(nameCount);
+		this.history.scan(new RunHistory.Visitor() {
+			public void run(int run, long time, int name) {
+			}
+
+			public void test(int run, int name, boolean passed, int millis) {
+				if (run >= split) {
+					testsAfter.add(name, millis);
+				} else if (run >= start) {
+					testsBefore.add(name, millis);
+				}
+			}
+
+			public void label(int run, int test, int name) {
+			}
+
+			public void command(int run, int test, int name, int status, int millis) {
+				if (run >= split) {
+					commandsAfter.add(name, millis);
+				} else if (run >= start) {
+					commandsBefore.add(name, millis);
+				}
+			}
+		}, this.end);
+		this.out.println("Runs #" + start + "-#" + (split - 1) + " against #" + split + "-#" + (runCount - 1));
+		printRegressions("test", testsBefore, testsAfter);
+		printRegressions("command", commandsBefore, commandsAfter);
+	}
+
+	void printRegressions(String kind, final Durations before, final Durations after) {
+		int both[] = new int[before.count.length];
+		for (int i = 0; i < both.length; i++) {
+			both[i] = Math.min(before.count[i], after.count[i]);
+		}
+		List<Integer> ranked = ranked(both, new Ranking() {
+			public double score(int name) {
+				return after.mean(name) - before.mean(name);
+			}
+		});
+		this.out.println("  delta ms  before ms   after ms  " + kind);
+		for (int i = 0; i < ranked.size() && i < DEFAULT_COUNT; i++) {
+			int name = ranked.get(i).intValue();
+			double delta = after.mean(name) - before.mean(name);
+			if (delta <= 0) {
+				break;
+			}
+			this.out.println(String.format(Locale.US, "%+10.1f %10.1f %10.1f  %s",
+				delta, before.mean(name), after.mean(name), this.history.getName(name)));
+		}
+	}
+
+	/**
+	 * Lists tests that both passed and failed, by how often the result
+	 * changed from one run to the next.
+	 */
+	void flaky(int limit) throws IOException {
+		int nameCount = this.history.getNameCount();
+		final int runs[] = new int[nameCount];
+		final int failures[] = new int[nameCount];
+		final int flips[] = new int[nameCount];
+		final byte last[] = new byte[nameCount];
+		this.history.scan(new RunHistory.Visitor() {
+			public void run(int run, long time, int name) {
+			}
+
+			public void test(int run, int name, boolean passed, int millis) {
+				byte result = (byte) (passed ? 1 : 2);
+				if (last[name] != 0 && last[name] != result) {
+					flips[name]++;
+				}
+				last[name] = result;
+				runs[name]++;
+				if (!passed) failures[name]++;
+			}
+
+			public void label(int run, int test, int name) {
+			}
+
+			public void command(int run, int test, int name, int status, int millis) {
+			}
+		}, this.end);
+		List<Integer> ranked = ranked(flips, new Ranking() {
+			public double score(int name) {
+				return runs[name] < 2 ? 0 : (double) flips[name] / (runs[name] - 1);
+			}
+		});
+		this.out.println("  flip rate  failures      runs  test");
+		for (int i = 0; i < ranked.size() && i < limit; i++) {
+			int name = ranked.get(i).intValue();
+			this.out.println(String.format(Locale.US, "%10.1f%% %9d %9d  %s", 100.0 * flips[name] / (runs[name] - 1),
+				failures[name], runs[name], this.history.getName(name)));
+		}
+	}
+
+	interface Ranking {
+		double score(int name);
+	}
+
+	/**
+	 * Returns the ids with a non-zero count, highest score first.
+	 */
+	static List<Integer> ranked(int counts[], final Ranking ranking) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				ids.add(Integer.valueOf(i));
+			}
+		}
+		Collections.sort(ids, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(ranking.score(b.intValue()), ranking.score(a.intValue()));
+			}
+		});
+		return ids;
+	}
+}
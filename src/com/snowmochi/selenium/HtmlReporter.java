@@ -0,0 +1,165 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Writes the HTML results page.  Test tables are written as the tests run;
+ * the suite summary follows them once the suite result is known.
+ */
+class HtmlReporter implements ResultReporter {
+	final Writer out;
+	final String browser;
+	Metrics metrics;
+	boolean inSuite;
+
+	HtmlReporter(Writer out, String browser) {
+		this.out = out;
+		this.browser = browser;
+	}
+
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	void writeHead(String title) throws IOException {
+		this.out.write("<html><head>");
+		this.out.write("<title>" + title + "</title>");
+		this.out.write("<style>");
+		this.out.write(".ran { background-color: #eeffee; }");
+		this.out.write(".passed { background-color: #ccffcc; }");
+		this.out.write(".failed { background-color: #ffcccc; }");
+		this.out.write(".error { background-color: #ffeeee; }");
+		this.out.write("</style>");
+		this.out.write("</head><body>");
+	}
+
+	public void startSuite(TestSuite suite) throws IOException {
+		this.inSuite = true;
+		writeHead(suite.name);
+		this.out.write("<div>\n");
+		this.out.write("<h1>Selenium Test Suite Results</h1>\n");
+		this.out.write("<h4>date:</h4> " + new Date() + "\n");
+		this.out.write("<h4>browser:</h4> " + this.browser + "\n");
+		if (suite.shard != null) {
+			this.out.write("<h4>shard:</h4> " + suite.shard + "\n");
+		}
+		this.out.write("</div>\n");
+		this.out.flush();
+	}
+
+	public void startTest(Test test) throws IOException {
+		if (!this.inSuite) {
+			writeHead(test.name);
+		}
+		this.out.write("<div>\n");
+		this.out.write("<h3><a name=\"" + test.label + "\">" + test.file.getName() + "</a></h3>\n");
+		this.out.write("<table border=\"1\">\n");
+		this.out.write("<tr class=\"ran\"><td colspan=\"3\">" + test.name + "</td></tr>\n");
+	}
+
+	public void command(Test test, Command command) throws IOException {
+		boolean result = command.result != null && command.result.startsWith("OK");
+		this.out.write("<tr class=\"" + (result ? "passed" : "failed") + "\"><td>");
+		this.out.write(command.cmd);
+		this.out.write("</td><td>");
+		if (command.args != null) {
+			this.out.write(Arrays.asList(command.args).toString());
+		}
+		this.out.write("</td><td>");
+		this.out.write(String.valueOf(command.result));
+		if (command.retries > 0) {
+			this.out.write(" (retried " + command.retries + "x)");
+		}
+		if (command.recovered) {
+			this.out.write(" (on a recovered session)");
+		}
+		if (AccessorCache.HIT.equals(command.cache)) {
+			this.out.write(" (cached)");
+		}
+		if (command.screenshot != null) {
+			this.out.write(" <a href=\"" + command.screenshot + "\">screenshot</a>");
+		}
+		if (command.source != null) {
+			this.out.write(" <a href=\"" + command.source + "\">source</a>");
+		}
+		this.out.write("</td></tr>\n");
+	}
+
+	public void endTest(Test test) throws IOException {
+		if (test.error != null) {
+			// why the test stopped outside any command, such as a session that would not start
+			this.out.write("<tr class=\"error\"><td colspan=\"3\">" + JUnitXmlReporter.escape(test.error) + "</td></tr>\n");
+		}
+		this.out.write("<tr class=\"" + (test.result ? "passed" : "failed") + "\"><td colspan=\"3\">" + (test.result ? "PASSED" : "FAILED") + " (" + test.time + " ms"
+			+ (test.retries > 0 ? ", session start retried " + test.retries + "x" : "")
+			+ (test.recoveries > 0 ? ", session recovered " + test.recoveries + "x" : "") + ")</td></tr>\n");
+		this.out.write("</table>\n");
+		this.out.write("</div>\n");
+		if (!this.inSuite) {
+			writeMetrics();
+			this.out.write("</body></html>");
+		}
+		this.out.flush();
+	}
+
+	public void endSuite(TestSuite suite) throws IOException {
+		this.out.write("<div>\n");
+		this.out.write("<h4>result:</h4> " + (suite.result ? "PASSED" : "FAILED") + "\n");
+		this.out.write("<h2>" + suite.file.getName() + "</h2>\n");
+		this.out.write("<table border=\"1\">\n");
+		this.out.write("<tr class=\"" + (suite.result ? "passed" : "failed") + "\"><td colspan=\"2\">" + suite.name + "</td></tr>\n");
+		for (Test test : suite.tests) {
+			this.out.write("<tr class=\"" + (test.result ? "passed" : "failed") + "\"><td>");
+			this.out.write("<a href=\"#" + test.label + "\">" + test.label + "</td><td>" + test.result + "\n");
+			this.out.write("</td></tr>\n");
+		}
+		this.out.write("</table>\n");
+		this.out.write("</div>\n");
+		writeMetrics();
+		this.out.write("</body></html>");
+		this.out.flush();
+	}
+
+	void writeMetrics() throws IOException {
+		if (this.metrics == null) {
+			return;
+		}
+		this.out.write("<div>\n");
+		this.out.write("<h2>Latency (ms)</h2>\n");
+		this.out.write("<table border=\"1\">\n");
+		this.out.write("<tr><th>command</th><th>count</th><th>mean</th><th>p50</th><th>p95</th><th>p99</th><th>max</th></tr>\n");
+		for (Map.Entry<String, LatencyHistogram> entry : this.metrics.snapshot().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			this.out.write("<tr><td>" + entry.getKey() + "</td><td>" + histogram.getCount()
+				+ "</td><td>" + Metrics.millis(histogram.getMean())
+				+ "</td><td>" + Metrics.millis(histogram.getPercentile(0.50))
+				+ "</td><td>" + Metrics.millis(histogram.getPercentile(0.95))
+				+ "</td><td>" + Metrics.millis(histogram.getPercentile(0.99))
+				+ "</td><td>" + Metrics.millis(histogram.getMax()) + "</td></tr>\n");
+		}
+		this.out.write("</table>\n");
+		long hits = this.metrics.getAccessorCacheHits();
+		long misses = this.metrics.getAccessorCacheMisses();
+		if (hits + misses > 0) {
+			this.out.write("<h4>accessor cache:</h4> " + hits + " hits, " + misses + " misses ("
+				+ (100 * hits / (hits + misses)) + "% of cacheable reads saved a round-trip)\n");
+		}
+		this.out.write("</div>\n");
+	}
+}
@@ -0,0 +1,1126 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+import java.text.*;
+import java.util.*;
+import java.util.regex.*;
+import com.gargoylesoftware.htmlunit.*;
+import com.gargoylesoftware.htmlunit.html.*;
+import com.thoughtworks.selenium.*;
+
+/**
+ * Runs Selenium RC commands against an HtmlUnit browser in this JVM rather
+ * than a browser behind an RC server, for --browser *htmlunit.  Commands
+ * get the same "OK[,result]" strings back that the server would send, and
+ * failures are thrown as SeleniumExceptions with the server's messages, so
+ * HtmlCommandProcessor can put it in place of the HTTP round trip.
+ *
+ * The core actions and accessors are covered, with Selenium Core's
+ * locators (except css=), option locators and patterns.  Page loads and
+ * Ajax requests made by actions complete before the action returns, so
+ * *AndWait and waitForPageToLoad have nothing left to wait for.  isVisible
+ * only sees inline styles and hidden inputs.  There are no screenshots.
+ *
+ * HtmlUnit's own dependencies (commons-httpclient, commons-io,
+ * commons-lang, commons-logging, commons-codec, htmlunit-core-js,
+ * cssparser, sac and xalan) must be on the classpath as well.
+ */
+class HtmlUnitCommandProcessor implements CommandProcessor {
+	static final String BROWSER = SeleniumHtmlClient.HtmlCommandProcessor.HTMLUNIT_BROWSER;
+
+	static final int STRING = 0;
+	static final int ARRAY = 1;
+	static final int BOOLEAN = 2;
+
+	/**
+	 * The kind of result an accessor returns and how many arguments it takes
+	 * before the pattern that assert/verify compare it with.
+	 */
+	static class Accessor {
+		final int type;
+		final int argCount;
+
+		Accessor(int type, int argCount) {
+			this.type = type;
+			this.argCount = argCount;
+		}
+	}
+
+	static final Map<String, Accessor> ACCESSORS = new HashMap<String, Accessor>();
+	static {
+		for (String name : new String[] { "Title", "Location", "BodyText", "HtmlSource",
+				"Alert", "Confirmation", "Prompt", "Cookie" }) {
+			ACCESSORS.put(name, new Accessor(STRING, 0));
+		}
+		for (String name : new String[] { "Text", "Value", "Attribute", "Expression", "Eval", "Table",
+				"CookieByName", "SelectedLabel", "SelectedValue", "SelectedIndex", "SelectedId", "XpathCount" }) {
+			ACCESSORS.put(name, new Accessor(STRING, 1));
+		}
+		for (String name : new String[] { "AllLinks", "AllButtons", "AllFields" }) {
+			ACCESSORS.put(name, new Accessor(ARRAY, 0));
+		}
+		for (String name : new String[] { "SelectOptions", "SelectedLabels", "SelectedValues",
+				"SelectedIndexes", "SelectedIds" }) {
+			ACCESSORS.put(name, new Accessor(ARRAY, 1));
+		}
+		for (String name : new String[] { "AlertPresent", "ConfirmationPresent", "PromptPresent" }) {
+			ACCESSORS.put(name, new Accessor(BOOLEAN, 0));
+		}
+		for (String name : new String[] { "ElementPresent", "TextPresent", "Visible", "Editable",
+				"Checked", "SomethingSelected", "CookiePresent" }) {
+			ACCESSORS.put(name, new Accessor(BOOLEAN, 1));
+		}
+	}
+
+	// the plural Selected accessors and the property each one lists
+	static final Map<String, String> SELECTED_PLURALS = new HashMap<String, String>();
+	static {
+		SELECTED_PLURALS.put("SelectedLabels", "Label");
+		SELECTED_PLURALS.put("SelectedValues", "Value");
+		SELECTED_PLURALS.put("SelectedIndexes", "Index");
+		SELECTED_PLURALS.put("SelectedIds", "Id");
+	}
+
+	// commands that only matter to a real browser window
+	static final Set<String> IGNORED = new HashSet<String>(Arrays.asList(new String[] {
+		"setSpeed", "windowMaximize", "windowFocus", "setBrowserLogLevel", "allowNativeXpath",
+		"useXpathLibrary", "waitForPageToLoad", "waitForFrameToLoad" }));
+
+	// commands that read or answer dialogs, and so may run while one is pending
+	static final Set<String> DIALOG_COMMANDS = new HashSet<String>(Arrays.asList(new String[] {
+		"Alert", "AlertPresent", "AlertNotPresent", "Confirmation", "ConfirmationPresent",
+		"ConfirmationNotPresent", "Prompt", "PromptPresent", "PromptNotPresent" }));
+
+	static final Pattern JAVASCRIPT_ARG = Pattern.compile("^javascript\\{(.*)\\}$", Pattern.DOTALL);
+	static final long POLL_INTERVAL = 100;
+
+	final String baseUrl;
+	WebClient client;
+	WebWindow mainWindow;
+	WebWindow window;
+	final LinkedList<String> alerts = new LinkedList<String>();
+	final LinkedList<String> confirmations = new LinkedList<String>();
+	final LinkedList<String> prompts = new LinkedList<String>();
+	// URLs of the pages each window showed before, most recent last, for goBack
+	final Map<WebWindow, LinkedList<URL>> history = new IdentityHashMap<WebWindow, LinkedList<URL>>();
+	boolean goingBack;
+	boolean nextConfirmation = true;
+	String nextPromptAnswer = "";
+	long timeout = WaitPoller.DEFAULT_TIMEOUT;
+
+	HtmlUnitCommandProcessor(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	public String getRemoteControlServerLocation() {
+		return "in-process HtmlUnit";
+	}
+
+	public void setExtensionJs(String extensionJs) {
+		// there is no Selenium Core to extend
+	}
+
+	public void start() {
+		try {
+			this.client = new WebClient(BrowserVersion.FIREFOX_2);
+		} catch (NoClassDefFoundError e) {
+			throw new SeleniumException("Could not start " + BROWSER + "; HtmlUnit's dependencies are not on the classpath ("
+				+ e.getMessage() + " is missing)");
+		}
+		// a real browser carries on past script errors and error pages
+		this.client.setThrowExceptionOnScriptError(false);
+		this.client.setThrowExceptionOnFailingStatusCode(false);
+		this.client.setPrintContentOnFailingStatusCode(false);
+		this.client.setAjaxController(new NicelyResynchronizingAjaxController());
+		this.client.setIncorrectnessListener(new IncorrectnessListener() {
+			public void notify(String message, Object origin) {
+			}
+		});
+		this.client.setAlertHandler(new AlertHandler() {
+			public void handleAlert(Page page, String message) {
+				synchronized (HtmlUnitCommandProcessor.this) {
+					HtmlUnitCommandProcessor.this.alerts.add(message);
+				}
+			}
+		});
+		this.client.setConfirmHandler(new ConfirmHandler() {
+			public boolean handleConfirm(Page page, String message) {
+				synchronized (HtmlUnitCommandProcessor.this) {
+					HtmlUnitCommandProcessor.this.confirmations.add(message);
+					boolean result = HtmlUnitCommandProcessor.this.nextConfirmation;
+					HtmlUnitCommandProcessor.this.nextConfirmation = true;
+					return result;
+				}
+			}
+		});
+		this.client.setPromptHandler(new PromptHandler() {
+			public String handlePrompt(Page page, String message) {
+				synchronized (HtmlUnitCommandProcessor.this) {
+					HtmlUnitCommandProcessor.this.prompts.add(message);
+					String answer = HtmlUnitCommandProcessor.this.nextPromptAnswer;
+					HtmlUnitCommandProcessor.this.nextPromptAnswer = "";
+					return answer;
+				}
+			}
+		});
+		this.client.addWebWindowListener(new WebWindowAdapter() {
+			public void webWindowContentChanged(WebWindowEvent event) {
+				recordHistory(event);
+			}
+		});
+		this.mainWindow = this.client.getCurrentWindow();
+		this.window = this.mainWindow;
+	}
+
+	synchronized void recordHistory(WebWindowEvent event) {
+		if (this.goingBack || event.getOldPage() == null) {
+			return;
+		}
+		LinkedList<URL> urls = this.history.get(event.getWebWindow());
+		if (urls == null) {
+			urls = new LinkedList<URL>();
+			this.history.put(event.getWebWindow(), urls);
+		}
+		urls.add(event.getOldPage().getWebResponse().getUrl());
+	}
+
+	/**
+	 * Loads the page the current window showed before.  HtmlUnit keeps no
+	 * history of its own, so the page is requested again (with a GET).
+	 */
+	void goBack() throws IOException {
+		URL previous;
+		synchronized (this) {
+			LinkedList<URL> urls = this.history.get(this.window);
+			if (urls == null || urls.isEmpty()) {
+				return;
+			}
+			previous = urls.removeLast();
+			this.goingBack = true;
+		}
+		try {
+			this.client.getPage(this.window, new WebRequestSettings(previous));
+		} finally {
+			synchronized (this) {
+				this.goingBack = false;
+			}
+		}
+	}
+
+	public void start(String optionsString) {
+		start();
+	}
+
+	public void start(Object optionsObject) {
+		start();
+	}
+
+	public void stop() {
+		if (this.client == null) {
+			return;
+		}
+		for (WebWindow window : new ArrayList<WebWindow>(this.client.getWebWindows())) {
+			if (window instanceof WebWindowImpl) {
+				((WebWindowImpl) window).getThreadManager().interruptAll();
+			}
+			if (window instanceof TopLevelWindow) {
+				((TopLevelWindow) window).close();
+			}
+		}
+		this.client = null;
+	}
+
+	public String doCommand(String cmd, String args[]) {
+		if (this.client == null) {
+			throw new SeleniumException("ERROR: The " + BROWSER + " session has not been started");
+		}
+		try {
+			checkDialogs(cmd);
+			args = evaluateArgs(args);
+			String accessor = accessorName(cmd);
+			if (accessor != null) {
+				return "OK," + format(access(accessor, args));
+			} else if (cmd.startsWith("verify") || cmd.startsWith("assert")) {
+				check(cmd, args);
+				return "OK";
+			} else if (cmd.endsWith("AndWait")) {
+				return doAction(cmd.substring(0, cmd.length() - "AndWait".length()), args);
+			} else {
+				return doAction(cmd, args);
+			}
+		} catch (SeleniumException e) {
+			throw e;
+		} catch (ScriptException e) {
+			throw new SeleniumException("ERROR: Threw an exception: " + e.getMessage(), e);
+		} catch (IOException e) {
+			// not chained: RetryPolicy would take the site's failure for a lost RC session
+			throw new SeleniumException("ERROR: " + e);
+		} catch (RuntimeException e) {
+			throw new SeleniumException("ERROR: " + cmd + " failed: " + e, e);
+		}
+	}
+
+	/**
+	 * Returns the accessor a getX or isX command calls, or null if the
+	 * command is not a known accessor.
+	 */
+	static String accessorName(String cmd) {
+		String name;
+		if (cmd.startsWith("get")) {
+			name = cmd.substring("get".length());
+		} else if (cmd.startsWith("is")) {
+			name = cmd.substring("is".length());
+		} else {
+			return null;
+		}
+		Accessor accessor = ACCESSORS.get(name);
+		if (accessor == null || (accessor.type == BOOLEAN) != cmd.startsWith("is")) {
+			return null;
+		}
+		return name;
+	}
+
+	/**
+	 * Fails the command with the dialog that nobody read, as the server does,
+	 * unless the command itself deals with dialogs.
+	 */
+	synchronized void checkDialogs(String cmd) {
+		String name = cmd.replaceFirst("^(get|is|verify|assert|waitFor)(Not)?", "");
+		if (DIALOG_COMMANDS.contains(name) || cmd.startsWith("choose") || cmd.equals("answerOnNextPrompt")) {
+			return;
+		}
+		if (!this.alerts.isEmpty()) {
+			throw new SeleniumException("ERROR: There was an unexpected Alert! [" + this.alerts.removeFirst() + "]");
+		} else if (!this.confirmations.isEmpty()) {
+			throw new SeleniumException("ERROR: There was an unexpected Confirmation! [" + this.confirmations.removeFirst() + "]");
+		}
+	}
+
+	/**
+	 * Replaces javascript{...} arguments with what the script evaluates to.
+	 */
+	String[] evaluateArgs(String args[]) {
+		String evaluated[] = args;
+		for (int i = 0; i < args.length; i++) {
+			Matcher matcher = JAVASCRIPT_ARG.matcher(args[i]);
+			if (matcher.matches()) {
+				if (evaluated == args) {
+					evaluated = args.clone();
+				}
+				evaluated[i] = eval(matcher.group(1));
+			}
+		}
+		return evaluated;
+	}
+
+	/**
+	 * Runs an assert/verify command: the accessor's result is compared with
+	 * the pattern that follows its own arguments.
+	 */
+	void check(String cmd, String args[]) {
+		String name = cmd.substring(cmd.startsWith("verify") ? "verify".length() : "assert".length());
+		boolean negated = false;
+		if (name.startsWith("Not")) {
+			negated = true;
+			name = name.substring("Not".length());
+		} else if (name.endsWith("NotPresent")) {
+			negated = true;
+			name = name.substring(0, name.length() - "NotPresent".length()) + "Present";
+		}
+		Accessor accessor = ACCESSORS.get(name);
+		if (accessor == null) {
+			throw new SeleniumException("ERROR: Unknown command: '" + cmd + "'");
+		}
+		Object value = access(name, args);
+		if (accessor.type == BOOLEAN) {
+			if (((Boolean) value).booleanValue() == negated) {
+				throw new SeleniumException("ERROR: " + value);
+			}
+			return;
+		}
+		String pattern = arg(args, accessor.argCount);
+		if (accessor.type == ARRAY) {
+			String actual[] = (String[]) value;
+			String expected[] = HttpCommandProcessor.parseCSV(pattern);
+			boolean matches = actual.length == expected.length;
+			for (int i = 0; matches && i < actual.length; i++) {
+				matches = PatternMatcher.matches(expected[i], actual[i]);
+			}
+			if (matches == negated) {
+				if (!negated && actual.length != expected.length) {
+					throw new SeleniumException("ERROR: Expected " + expected.length + " items but found " + actual.length);
+				}
+				throw new SeleniumException("ERROR: Actual value '" + join(actual) + "' "
+					+ (negated ? "did" : "did not") + " match '" + pattern + "'");
+			}
+		} else if (PatternMatcher.matches(pattern, (String) value) == negated) {
+			throw new SeleniumException("ERROR: Actual value '" + value + "' "
+				+ (negated ? "did" : "did not") + " match '" + pattern + "'");
+		}
+	}
+
+	/**
+	 * Calls an accessor, returning a String, a String[] or a Boolean
+	 * depending on its type.
+	 */
+	Object access(String name, String args[]) {
+		if (name.equals("Title")) {
+			return page().getTitleText();
+		} else if (name.equals("Location")) {
+			return page().getWebResponse().getUrl().toString();
+		} else if (name.equals("BodyText")) {
+			return bodyText();
+		} else if (name.equals("HtmlSource")) {
+			return page().asXml();
+		} else if (name.equals("Alert")) {
+			return nextDialog(this.alerts, "alerts");
+		} else if (name.equals("Confirmation")) {
+			return nextDialog(this.confirmations, "confirmations");
+		} else if (name.equals("Prompt")) {
+			return nextDialog(this.prompts, "prompts");
+		} else if (name.equals("AlertPresent")) {
+			return Boolean.valueOf(hasDialog(this.alerts));
+		} else if (name.equals("ConfirmationPresent")) {
+			return Boolean.valueOf(hasDialog(this.confirmations));
+		} else if (name.equals("PromptPresent")) {
+			return Boolean.valueOf(hasDialog(this.prompts));
+		} else if (name.equals("Cookie")) {
+			return eval("document.cookie");
+		} else if (name.equals("CookieByName")) {
+			String value = cookies().get(arg(args, 0));
+			if (value == null) {
+				throw new SeleniumException("ERROR: Cookie '" + arg(args, 0) + "' was not found");
+			}
+			return value;
+		} else if (name.equals("CookiePresent")) {
+			return Boolean.valueOf(cookies().containsKey(arg(args, 0)));
+		} else if (name.equals("Expression")) {
+			return arg(args, 0);
+		} else if (name.equals("Eval")) {
+			return eval(arg(args, 0));
+		} else if (name.equals("Text")) {
+			return find(arg(args, 0)).asText().trim();
+		} else if (name.equals("Value")) {
+			return value(find(arg(args, 0)));
+		} else if (name.equals("Attribute")) {
+			return attribute(arg(args, 0));
+		} else if (name.equals("Table")) {
+			return tableCell(arg(args, 0));
+		} else if (name.equals("XpathCount")) {
+			return String.valueOf(page().getByXPath(arg(args, 0)).size());
+		} else if (name.equals("ElementPresent")) {
+			return Boolean.valueOf(locate(arg(args, 0)) != null);
+		} else if (name.equals("TextPresent")) {
+			return Boolean.valueOf(PatternMatcher.contains(arg(args, 0), bodyText()));
+		} else if (name.equals("Visible")) {
+			return Boolean.valueOf(isVisible(find(arg(args, 0))));
+		} else if (name.equals("Editable")) {
+			return Boolean.valueOf(isEditable(arg(args, 0)));
+		} else if (name.equals("Checked")) {
+			HtmlElement element = find(arg(args, 0));
+			if (!(element instanceof HtmlCheckBoxInput || element instanceof HtmlRadioButtonInput)) {
+				throw new SeleniumException("ERROR: Element " + arg(args, 0) + " is not a toggle-button.");
+			}
+			return Boolean.valueOf(((HtmlInput) element).isChecked());
+		} else if (name.equals("SomethingSelected")) {
+			return Boolean.valueOf(!select(arg(args, 0)).getSelectedOptions().isEmpty());
+		} else if (name.equals("SelectOptions")) {
+			List<String> labels = new ArrayList<String>();
+			for (HtmlOption option : select(arg(args, 0)).getOptions()) {
+				labels.add(option.asText());
+			}
+			return labels.toArray(new String[labels.size()]);
+		} else if (name.startsWith("Selected")) {
+			return selected(name, arg(args, 0));
+		} else if (name.equals("AllLinks")) {
+			List<String> ids = new ArrayList<String>();
+			for (HtmlAnchor anchor : page().getAnchors()) {
+				ids.add(anchor.getId());
+			}
+			return ids.toArray(new String[ids.size()]);
+		} else if (name.equals("AllButtons") || name.equals("AllFields")) {
+			String types = name.equals("AllButtons") ? "button submit reset" : "text";
+			List<String> ids = new ArrayList<String>();
+			for (HtmlElement element : page().getDocumentElement().getHtmlElementsByTagName("input")) {
+				if ((" " + types + " ").indexOf(" " + ((HtmlInput) element).getTypeAttribute().toLowerCase() + " ") >= 0) {
+					ids.add(element.getId());
+				}
+			}
+			return ids.toArray(new String[ids.size()]);
+		}
+		throw new SeleniumException("ERROR: Unknown command: 'get" + name + "'");
+	}
+
+	String doAction(String cmd, String args[]) throws IOException {
+		if (cmd.equals("open")) {
+			open(arg(args, 0));
+		} else if (cmd.equals("click")) {
+			HtmlElement element = find(arg(args, 0));
+			if (element instanceof ClickableElement) {
+				((ClickableElement) element).click();
+			} else {
+				element.fireEvent("click");
+			}
+		} else if (cmd.equals("doubleClick")) {
+			HtmlElement element = find(arg(args, 0));
+			if (element instanceof ClickableElement) {
+				((ClickableElement) element).dblClick();
+			} else {
+				element.fireEvent("dblclick");
+			}
+		} else if (cmd.equals("type")) {
+			type(arg(args, 0), arg(args, 1));
+		} else if (cmd.equals("typeKeys")) {
+			find(arg(args, 0)).type(arg(args, 1));
+		} else if (cmd.equals("keyPress")) {
+			find(arg(args, 0)).type(keyChar(arg(args, 1)));
+		} else if (cmd.equals("check") || cmd.equals("uncheck")) {
+			HtmlElement element = find(arg(args, 0));
+			if (!(element instanceof HtmlCheckBoxInput || element instanceof HtmlRadioButtonInput)) {
+				throw new SeleniumException("ERROR: Element " + arg(args, 0) + " is not a toggle-button.");
+			}
+			((HtmlInput) element).setChecked(cmd.equals("check"));
+		} else if (cmd.equals("select") || cmd.equals("addSelection") || cmd.equals("removeSelection")) {
+			HtmlSelect select = select(arg(args, 0));
+			select.setSelectedAttribute(option(select, arg(args, 1)), !cmd.equals("removeSelection"));
+		} else if (cmd.equals("removeAllSelections")) {
+			HtmlSelect select = select(arg(args, 0));
+			for (HtmlOption option : select.getSelectedOptions()) {
+				select.setSelectedAttribute(option, false);
+			}
+		} else if (cmd.equals("submit")) {
+			HtmlElement element = find(arg(args, 0));
+			if (!(element instanceof HtmlForm)) {
+				throw new SeleniumException("ERROR: Element " + arg(args, 0) + " is not a form.");
+			}
+			((HtmlForm) element).submit(null);
+		} else if (cmd.equals("focus")) {
+			find(arg(args, 0)).focus();
+		} else if (cmd.equals("fireEvent")) {
+			find(arg(args, 0)).fireEvent(arg(args, 1));
+		} else if (cmd.equals("mouseOver")) {
+			find(arg(args, 0)).mouseOver();
+		} else if (cmd.equals("mouseOut")) {
+			find(arg(args, 0)).mouseOut();
+		} else if (cmd.equals("mouseDown")) {
+			find(arg(args, 0)).mouseDown();
+		} else if (cmd.equals("mouseUp")) {
+			find(arg(args, 0)).mouseUp();
+		} else if (cmd.equals("goBack")) {
+			goBack();
+		} else if (cmd.equals("refresh")) {
+			page().refresh();
+		} else if (cmd.equals("runScript")) {
+			eval(arg(args, 0));
+		} else if (cmd.equals("selectWindow")) {
+			selectWindow(arg(args, 0));
+		} else if (cmd.equals("selectFrame")) {
+			selectFrame(arg(args, 0));
+		} else if (cmd.equals("chooseOkOnNextConfirmation") || cmd.equals("chooseCancelOnNextConfirmation")) {
+			synchronized (this) {
+				this.nextConfirmation = cmd.equals("chooseOkOnNextConfirmation");
+			}
+		} else if (cmd.equals("answerOnNextPrompt")) {
+			synchronized (this) {
+				this.nextPromptAnswer = arg(args, 0);
+			}
+		} else if (cmd.equals("createCookie")) {
+			createCookie(arg(args, 0), arg(args, 1));
+		} else if (cmd.equals("deleteCookie")) {
+			createCookie(arg(args, 0) + "=deleted", "max_age=0" + (arg(args, 1).length() > 0 ? ", " + arg(args, 1) : ""));
+		} else if (cmd.equals("deleteAllVisibleCookies")) {
+			clearCookies();
+		} else if (cmd.equals("setTimeout")) {
+			this.timeout = Long.parseLong(arg(args, 0));
+			this.client.setTimeout((int) this.timeout);
+		} else if (cmd.equals("waitForCondition")) {
+			waitForCondition(arg(args, 0), Long.parseLong(arg(args, 1)));
+		} else if (cmd.equals("waitForPopUp")) {
+			waitForPopUp(arg(args, 0), arg(args, 1).length() > 0 ? Long.parseLong(arg(args, 1)) : this.timeout);
+		} else if (!IGNORED.contains(cmd)) {
+			throw new SeleniumException("ERROR: Unknown command: '" + cmd + "'");
+		}
+		return "OK";
+	}
+
+	static String arg(String args[], int index) {
+		return index < args.length ? args[index] : "";
+	}
+
+	HtmlPage page() {
+		Page page = this.window.getEnclosedPage();
+		if (!(page instanceof HtmlPage)) {
+			throw new SeleniumException("ERROR: The current page is not an HTML page"
+				+ (page == null ? "" : " (" + page.getWebResponse().getContentType() + ")"));
+		}
+		return (HtmlPage) page;
+	}
+
+	String bodyText() {
+		HtmlElement body = page().getBody();
+		return body == null ? "" : body.asText();
+	}
+
+	/**
+	 * Opens a URL in the main window; relative URLs are resolved against the
+	 * base URL, as the server does.  java.net.URL has no handler for
+	 * about:blank, which pooled sessions are reset to, so HtmlUnit's is used.
+	 */
+	void open(String url) throws IOException {
+		URL target;
+		try {
+			if (url.equals("about:blank")) {
+				target = WebClient.URL_ABOUT_BLANK;
+			} else {
+				target = this.baseUrl == null ? new URL(url) : WebClient.expandUrl(new URL(this.baseUrl), url);
+			}
+		} catch (MalformedURLException e) {
+			throw new SeleniumException("ERROR: Cannot open " + url + ": " + e.getMessage());
+		}
+		this.window = this.mainWindow;
+		Page page = this.client.getPage(this.window, new WebRequestSettings(target));
+		int status = page.getWebResponse().getStatusCode();
+		if (status >= 400) {
+			throw new SeleniumException("ERROR: XHR ERROR: URL = " + target + " Response_Code = " + status
+				+ " Error_Message = " + page.getWebResponse().getStatusMessage());
+		}
+	}
+
+	/**
+	 * Evaluates a script in the current page and returns its value as a
+	 * string.  As in Selenium Core, "this" (also reachable as "selenium") has
+	 * a browserbot whose getCurrentWindow() and getDocument() give the page.
+	 */
+	String eval(String script) {
+		ScriptResult result = page().executeJavaScript("(function() {"
+			+ " var selenium = { browserbot: { getCurrentWindow: function() { return window; },"
+			+ " getDocument: function() { return document; } } };"
+			+ " return String((function() { return eval(" + AccessorBatch.quote(script) + "); }).call(selenium)); })()");
+		return String.valueOf(result.getJavaScriptResult());
+	}
+
+	HtmlElement find(String locator) {
+		HtmlElement element = locate(locator);
+		if (element == null) {
+			throw new SeleniumException("ERROR: Element " + locator + " not found");
+		}
+		return element;
+	}
+
+	/**
+	 * Finds an element by a Selenium Core locator, or returns null.  Without
+	 * a prefix, locators starting with // are XPaths, those starting with
+	 * document. are DOM expressions, and anything else is an identifier.
+	 */
+	HtmlElement locate(String locator) {
+		HtmlPage page = page();
+		String type;
+		String value;
+		int equals = locator.indexOf('=');
+		if (equals > 0 && locator.substring(0, equals).matches("[a-z]+")) {
+			type = locator.substring(0, equals);
+			value = locator.substring(equals + 1);
+		} else if (locator.startsWith("//")) {
+			type = "xpath";
+			value = locator;
+		} else if (locator.startsWith("document.")) {
+			type = "dom";
+			value = locator;
+		} else {
+			type = "identifier";
+			value = locator;
+		}
+		if (type.equals("id") || type.equals("identifier")) {
+			try {
+				return page.getHtmlElementById(value);
+			} catch (ElementNotFoundException e) {
+				if (type.equals("id")) {
+					return null;
+				}
+			}
+			List<HtmlElement> named = page.getHtmlElementsByName(value);
+			return named.isEmpty() ? null : named.get(0);
+		} else if (type.equals("name")) {
+			List<HtmlElement> named = page.getHtmlElementsByName(value);
+			return named.isEmpty() ? null : named.get(0);
+		} else if (type.equals("xpath")) {
+			for (Object node : page.getByXPath(value)) {
+				if (node instanceof HtmlElement) {
+					return (HtmlElement) node;
+				}
+			}
+			return null;
+		} else if (type.equals("link")) {
+			for (HtmlAnchor anchor : page.getAnchors()) {
+				if (PatternMatcher.matches(value, anchor.asText().trim())) {
+					return anchor;
+				}
+			}
+			return null;
+		} else if (type.equals("dom")) {
+			return domElement(page, value);
+		} else if (type.equals("css")) {
+			throw new SeleniumException("ERROR: css locators are not supported by " + BROWSER);
+		}
+		throw new SeleniumException("ERROR: Unrecognised locator type: '" + type + "'");
+	}
+
+	/**
+	 * Evaluates a DOM expression and returns the element it refers to.  The
+	 * script object is unwrapped by reflection so that JavaScript engine
+	 * classes are not needed at compile time.
+	 */
+	static HtmlElement domElement(HtmlPage page, String expression) {
+		Object result = page.executeJavaScript(expression).getJavaScriptResult();
+		if (result == null) {
+			return null;
+		}
+		try {
+			Object node = result.getClass().getMethod("getDomNodeOrNull").invoke(result);
+			return node instanceof HtmlElement ? (HtmlElement) node : null;
+		} catch (Exception e) {
+			// not a DOM node, such as undefined
+			return null;
+		}
+	}
+
+	static String value(HtmlElement element) {
+		if (element instanceof HtmlCheckBoxInput || element instanceof HtmlRadioButtonInput) {
+			return ((HtmlInput) element).isChecked() ? "on" : "off";
+		} else if (element instanceof HtmlInput) {
+			return ((HtmlInput) element).getValueAttribute();
+		} else if (element instanceof HtmlTextArea) {
+			return ((HtmlTextArea) element).getText();
+		} else if (element instanceof HtmlSelect) {
+			List<HtmlOption> selected = ((HtmlSelect) element).getSelectedOptions();
+			return selected.isEmpty() ? "" : selected.get(0).getValueAttribute();
+		}
+		return element.getAttribute("value");
+	}
+
+	String attribute(String attributeLocator) {
+		int at = attributeLocator.lastIndexOf('@');
+		if (at < 0) {
+			throw new SeleniumException("ERROR: Attribute locator " + attributeLocator + " has no @");
+		}
+		HtmlElement element = find(attributeLocator.substring(0, at));
+		String name = attributeLocator.substring(at + 1);
+		if (!element.hasAttribute(name)) {
+			throw new SeleniumException("ERROR: Could not find element attribute: " + attributeLocator);
+		}
+		return element.getAttribute(name);
+	}
+
+	/**
+	 * Returns the text of a cell given as tableLocator.row.column, counting
+	 * from zero.
+	 */
+	String tableCell(String cellAddress) {
+		Matcher matcher = Pattern.compile("(.*)\\.(\\d+)\\.(\\d+)").matcher(cellAddress);
+		if (!matcher.matches()) {
+			throw new SeleniumException("ERROR: Invalid target format. Correct format is tableLocator.row.column");
+		}
+		HtmlElement element = find(matcher.group(1));
+		if (!(element instanceof HtmlTable)) {
+			throw new SeleniumException("ERROR: Element " + matcher.group(1) + " is not a table");
+		}
+		HtmlTableCell cell = ((HtmlTable) element).getCellAt(Integer.parseInt(matcher.group(2)),
+			Integer.parseInt(matcher.group(3)));
+		if (cell == null) {
+			throw new SeleniumException("ERROR: Cell " + cellAddress + " not found");
+		}
+		return cell.asText().trim();
+	}
+
+	static boolean isVisible(HtmlElement element) {
+		if (element instanceof HtmlHiddenInput) {
+			return false;
+		}
+		for (DomNode node = element; node instanceof HtmlElement; node = node.getParentNode()) {
+			String style = ((HtmlElement) node).getAttribute("style").replaceAll("\\s", "").toLowerCase();
+			if (style.indexOf("display:none") >= 0 || style.indexOf("visibility:hidden") >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean isEditable(String locator) {
+		HtmlElement element = find(locator);
+		if (element instanceof HtmlInput) {
+			return !((HtmlInput) element).isDisabled() && !element.hasAttribute("readonly");
+		} else if (element instanceof HtmlTextArea) {
+			return !((HtmlTextArea) element).isDisabled() && !element.hasAttribute("readonly");
+		} else if (element instanceof HtmlSelect) {
+			return !((HtmlSelect) element).isDisabled();
+		}
+		throw new SeleniumException("ERROR: Element " + locator + " is not an input.");
+	}
+
+	void type(String locator, String value) throws IOException {
+		HtmlElement element = find(locator);
+		element.focus();
+		if (element instanceof HtmlInput) {
+			((HtmlInput) element).setValueAttribute(value);
+		} else if (element instanceof HtmlTextArea) {
+			((HtmlTextArea) element).setText(value);
+		} else {
+			throw new SeleniumException("ERROR: Element " + locator + " is not an input.");
+		}
+		element.fireEvent("change");
+	}
+
+	/**
+	 * Turns a keyPress key sequence, either a character or \ and a key code,
+	 * into the character to type.
+	 */
+	static char keyChar(String keySequence) {
+		if (keySequence.startsWith("\\") && keySequence.length() > 1) {
+			return (char) Integer.parseInt(keySequence.substring(1));
+		} else if (keySequence.length() == 1) {
+			return keySequence.charAt(0);
+		}
+		throw new SeleniumException("ERROR: invalid keySequence");
+	}
+
+	HtmlSelect select(String locator) {
+		HtmlElement element = find(locator);
+		if (!(element instanceof HtmlSelect)) {
+			throw new SeleniumException("ERROR: Specified element is not a Select (has no options)");
+		}
+		return (HtmlSelect) element;
+	}
+
+	/**
+	 * Finds an option by label=, value=, id= or index=; a locator without a
+	 * prefix is a label.  Labels and values are patterns.
+	 */
+	static HtmlOption option(HtmlSelect select, String optionLocator) {
+		String type = "label";
+		String value = optionLocator;
+		int equals = optionLocator.indexOf('=');
+		if (equals > 0 && optionLocator.substring(0, equals).matches("label|value|id|index")) {
+			type = optionLocator.substring(0, equals);
+			value = optionLocator.substring(equals + 1);
+		}
+		List<HtmlOption> options = select.getOptions();
+		for (int i = 0; i < options.size(); i++) {
+			HtmlOption option = options.get(i);
+			if (type.equals("label") ? PatternMatcher.matches(value, option.asText())
+					: type.equals("value") ? PatternMatcher.matches(value, option.getValueAttribute())
+					: type.equals("id") ? value.equals(option.getId())
+					: value.equals(String.valueOf(i))) {
+				return option;
+			}
+		}
+		throw new SeleniumException("ERROR: Option with " + type + " '" + value + "' not found");
+	}
+
+	/**
+	 * Answers the Selected{Label,Value,Index,Id} accessors and their plurals.
+	 */
+	Object selected(String name, String locator) {
+		HtmlSelect select = select(locator);
+		String property = SELECTED_PLURALS.get(name);
+		boolean plural = property != null;
+		if (!plural) {
+			property = name.substring("Selected".length());
+		}
+		List<String> values = new ArrayList<String>();
+		for (HtmlOption option : select.getSelectedOptions()) {
+			if (property.equals("Label")) {
+				values.add(option.asText());
+			} else if (property.equals("Value")) {
+				values.add(option.getValueAttribute());
+			} else if (property.equals("Index")) {
+				values.add(String.valueOf(select.getOptions().indexOf(option)));
+			} else {
+				values.add(option.getId());
+			}
+		}
+		if (plural) {
+			return values.toArray(new String[values.size()]);
+		} else if (values.isEmpty()) {
+			throw new SeleniumException("ERROR: No option selected");
+		}
+		return values.get(0);
+	}
+
+	synchronized boolean hasDialog(List<String> dialogs) {
+		return !dialogs.isEmpty();
+	}
+
+	synchronized String nextDialog(LinkedList<String> dialogs, String kind) {
+		if (dialogs.isEmpty()) {
+			throw new SeleniumException("ERROR: There were no " + kind);
+		}
+		return dialogs.removeFirst();
+	}
+
+	void selectWindow(String windowId) {
+		if (windowId.length() == 0 || windowId.equals("null")) {
+			this.window = this.mainWindow;
+			return;
+		}
+		String name = windowId.startsWith("name=") ? windowId.substring("name=".length()) : windowId;
+		String title = windowId.startsWith("title=") ? windowId.substring("title=".length()) : windowId;
+		for (WebWindow candidate : this.client.getWebWindows()) {
+			if (!(candidate instanceof TopLevelWindow)) {
+				continue;
+			}
+			Page page = candidate.getEnclosedPage();
+			if ((!windowId.startsWith("title=") && name.equals(candidate.getName()))
+					|| (!windowId.startsWith("name=") && page instanceof HtmlPage && title.equals(((HtmlPage) page).getTitleText()))) {
+				this.window = candidate;
+				return;
+			}
+		}
+		throw new SeleniumException("ERROR: Window does not exist");
+	}
+
+	void selectFrame(String locator) {
+		if (locator.equals("relative=top")) {
+			this.window = this.window.getTopWindow();
+			return;
+		} else if (locator.equals("relative=up") || locator.equals("relative=parent")) {
+			this.window = this.window.getParentWindow();
+			return;
+		}
+		HtmlPage page = page();
+		if (locator.startsWith("index=")) {
+			int index = Integer.parseInt(locator.substring("index=".length()));
+			if (index < page.getFrames().size()) {
+				this.window = page.getFrames().get(index);
+				return;
+			}
+		} else {
+			try {
+				this.window = page.getFrameByName(locator);
+				return;
+			} catch (ElementNotFoundException e) {
+				HtmlElement element = locate(locator);
+				if (element instanceof BaseFrame) {
+					this.window = ((BaseFrame) element).getEnclosedWindow();
+					return;
+				}
+			}
+		}
+		throw new SeleniumException("ERROR: Not a frame: " + locator);
+	}
+
+	Map<String, String> cookies() {
+		Map<String, String> cookies = new LinkedHashMap<String, String>();
+		for (String cookie : eval("document.cookie").split(";")) {
+			int equals = cookie.indexOf('=');
+			if (equals > 0) {
+				cookies.put(cookie.substring(0, equals).trim(), cookie.substring(equals + 1).trim());
+			}
+		}
+		return cookies;
+	}
+
+	/**
+	 * Sets a cookie from the page, with createCookie's "path=..., max_age=..."
+	 * options.
+	 */
+	void createCookie(String nameValuePair, String optionsString) {
+		StringBuilder cookie = new StringBuilder(nameValuePair);
+		for (String option : optionsString.split(",")) {
+			option = option.trim();
+			if (option.startsWith("max_age=")) {
+				long maxAge = Long.parseLong(option.substring("max_age=".length()));
+				SimpleDateFormat format = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss 'GMT'", Locale.US);
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				cookie.append("; expires=").append(format.format(new Date(System.currentTimeMillis() + maxAge * 1000)));
+			} else if (option.startsWith("path=") || option.startsWith("domain=")) {
+				cookie.append("; ").append(option);
+			}
+		}
+		eval("document.cookie = " + AccessorBatch.quote(cookie.toString()));
+	}
+
+	/**
+	 * Forgets every cookie this browser holds.  The cookie store is HttpClient
+	 * state, reached by reflection so that HttpClient is not needed at compile
+	 * time.
+	 */
+	void clearCookies() {
+		try {
+			WebConnection connection = this.client.getWebConnection();
+			Object state = connection.getClass().getMethod("getState").invoke(connection);
+			state.getClass().getMethod("clearCookies").invoke(state);
+		} catch (Exception e) {
+			throw new SeleniumException("ERROR: Could not clear cookies: " + e, e);
+		}
+	}
+
+	void waitForCondition(String script, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!eval(script).equals("true")) {
+			if (System.currentTimeMillis() >= deadline) {
+				throw new SeleniumException("ERROR: Timed out after " + timeout + "ms");
+			}
+			sleep();
+		}
+	}
+
+	void waitForPopUp(String windowId, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		WebWindow current = this.window;
+		while (true) {
+			try {
+				selectWindow(windowId);
+				return;
+			} catch (SeleniumException e) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw new SeleniumException("ERROR: Timed out after " + timeout + "ms");
+				}
+				sleep();
+			} finally {
+				this.window = current;
+			}
+		}
+	}
+
+	static void sleep() {
+		try {
+			Thread.sleep(POLL_INTERVAL);
+		} catch (InterruptedException e) {
+			throw new SeleniumException("ERROR: interrupted");
+		}
+	}
+
+	/**
+	 * Formats an accessor result the way the server does: arrays as
+	 * comma-separated values with commas and backslashes escaped.
+	 */
+	static String format(Object value) {
+		if (value instanceof String[]) {
+			String items[] = (String[]) value;
+			StringBuilder csv = new StringBuilder();
+			for (int i = 0; i < items.length; i++) {
+				if (i > 0) csv.append(',');
+				csv.append(items[i].replace("\\", "\\\\").replace(",", "\\,"));
+			}
+			return csv.toString();
+		}
+		return String.valueOf(value);
+	}
+
+	static String join(String values[]) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) joined.append(',');
+			joined.append(values[i]);
+		}
+		return joined.toString();
+	}
+
+	public String getString(String command, String args[]) {
+		String result = doCommand(command, args);
+		return result.length() >= "OK,".length() ? result.substring("OK,".length()) : "";
+	}
+
+	public String[] getStringArray(String command, String args[]) {
+		return HttpCommandProcessor.parseCSV(getString(command, args));
+	}
+
+	public Number getNumber(String command, String args[]) {
+		return Integer.valueOf(getString(command, args));
+	}
+
+	public Number[] getNumberArray(String command, String args[]) {
+		String values[] = getStringArray(command, args);
+		Number numbers[] = new Number[values.length];
+		for (int i = 0; i < values.length; i++) {
+			numbers[i] = Integer.valueOf(values[i]);
+		}
+		return numbers;
+	}
+
+	public boolean getBoolean(String command, String args[]) {
+		String result = getString(command, args);
+		if (!result.equals("true") && !result.equals("false")) {
+			throw new RuntimeException("result was neither 'true' nor 'false': " + result);
+		}
+		return result.equals("true");
+	}
+
+	public boolean[] getBooleanArray(String command, String args[]) {
+		String values[] = getStringArray(command, args);
+		boolean booleans[] = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			if (!values[i].equals("true") && !values[i].equals("false")) {
+				throw new RuntimeException("result was neither 'true' nor 'false': " + values[i]);
+			}
+			booleans[i] = values[i].equals("true");
+		}
+		return booleans;
+	}
+
+	/**
+	 * Selenium Core's pattern syntax: glob: (the default), regexp:, regexpi:
+	 * and exact:.
+	 */
+	static class PatternMatcher {
+		static boolean matches(String pattern, String actual) {
+			if (pattern.startsWith("regexp:")) {
+				return Pattern.compile(pattern.substring("regexp:".length())).matcher(actual).find();
+			} else if (pattern.startsWith("regexpi:")) {
+				return Pattern.compile(pattern.substring("regexpi:".length()), Pattern.CASE_INSENSITIVE).matcher(actual).find();
+			} else if (pattern.startsWith("exact:")) {
+				return pattern.substring("exact:".length()).equals(actual);
+			} else if (pattern.startsWith("glob:")) {
+				pattern = pattern.substring("glob:".length());
+			}
+			return Pattern.compile(globToRegexp(pattern), Pattern.DOTALL).matcher(actual).matches();
+		}
+
+		/**
+		 * Matches text the way isTextPresent does, where glob and exact
+		 * patterns may match anywhere in the text.
+		 */
+		static boolean contains(String pattern, String text) {
+			if (pattern.startsWith("regexp:") || pattern.startsWith("regexpi:")) {
+				return matches(pattern, text);
+			} else if (pattern.startsWith("exact:")) {
+				return text.indexOf(pattern.substring("exact:".length())) >= 0;
+			} else if (pattern.startsWith("glob:")) {
+				pattern = pattern.substring("glob:".length());
+			}
+			return Pattern.compile(globToRegexp(pattern), Pattern.DOTALL).matcher(text).find();
+		}
+
+		static String globToRegexp(String glob) {
+			StringBuilder regexp = new StringBuilder();
+			for (int i = 0; i < glob.length(); i++) {
+				char c = glob.charAt(i);
+				if (c == '*') {
+					regexp.append(".*");
+				} else if (c == '?') {
+					regexp.append('.');
+				} else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+					regexp.append('\\').append(c);
+				} else {
+					regexp.append(c);
+				}
+			}
+			return regexp.toString();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Writes results in the JUnit XML format understood by Jenkins and other CI
+ * servers, one testcase element per Selenese test.  Only the failing
+ * commands of the test currently running are held in memory.
+ */
+class JUnitXmlReporter implements ResultReporter {
+	final Writer out;
+	String className;
+	boolean inSuite;
+	final List<Command> failedCommands = new ArrayList<Command>();
+	final List<Command> retriedCommands = new ArrayList<Command>();
+	long cacheHits;
+	long cacheMisses;
+
+	JUnitXmlReporter(Writer out) {
+		this.out = out;
+	}
+
+	void writeHead(String name) throws IOException {
+		this.out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		this.out.write("<testsuite name=\"" + escape(name) + "\" timestamp=\"" + timestamp() + "\">\n");
+	}
+
+	public void startSuite(TestSuite suite) throws IOException {
+		this.inSuite = true;
+		this.className = stripExtension(suite.file.getName());
+		writeHead(suite.name.trim());
+		this.out.flush();
+	}
+
+	public void startTest(Test test) throws IOException {
+		if (!this.inSuite) {
+			this.className = stripExtension(test.file.getName());
+			writeHead(test.name.trim());
+		}
+		this.failedCommands.clear();
+		this.retriedCommands.clear();
+	}
+
+	public void command(Test test, Command command) throws IOException {
+		if (command.error) {
+			this.failedCommands.add(command);
+		}
+		if (command.retries > 0 || command.recovered) {
+			this.retriedCommands.add(command);
+		}
+		if (AccessorCache.HIT.equals(command.cache)) {
+			this.cacheHits++;
+		} else if (AccessorCache.MISS.equals(command.cache)) {
+			this.cacheMisses++;
+		}
+	}
+
+	void writeCacheCounts() throws IOException {
+		if (this.cacheHits + this.cacheMisses > 0) {
+			this.out.write("  <system-out>accessor cache: " + this.cacheHits + " hits, " + this.cacheMisses + " misses</system-out>\n");
+		}
+	}
+
+	public void endTest(Test test) throws IOException {
+		String name = test.label != null ? test.label : stripExtension(test.file.getName());
+		this.out.write("  <testcase classname=\"" + escape(this.className) + "\" name=\"" + escape(name) + "\" time=\"" + seconds(test.time) + "\">\n");
+		if (test.error != null) {
+			this.out.write("    <error message=\"" + escape(test.error) + "\"/>\n");
+		} else if (!this.failedCommands.isEmpty()) {
+			Command first = this.failedCommands.get(0);
+			this.out.write("    <failure message=\"" + escape(String.valueOf(first.result)) + "\">");
+			for (Command command : this.failedCommands) {
+				this.out.write(escape(describe(command)) + "\n");
+			}
+			this.out.write("</failure>\n");
+		}
+		if (test.retries > 0 || test.recoveries > 0 || !this.retriedCommands.isEmpty()) {
+			// keep flakiness visible even when the test passed in the end
+			this.out.write("    <system-out>");
+			if (test.retries > 0) {
+				this.out.write("session start retried " + test.retries + "x\n");
+			}
+			if (test.recoveries > 0) {
+				this.out.write("session recovered " + test.recoveries + "x\n");
+			}
+			for (Command command : this.retriedCommands) {
+				this.out.write(escape(command.cmd
+					+ (command.retries > 0 ? " retried " + command.retries + "x" : "")
+					+ (command.recovered ? " ran on a recovered session" : "")) + "\n");
+			}
+			this.out.write("</system-out>\n");
+		}
+		this.out.write("  </testcase>\n");
+		this.failedCommands.clear();
+		this.retriedCommands.clear();
+		if (!this.inSuite) {
+			writeCacheCounts();
+			this.out.write("</testsuite>\n");
+		}
+		this.out.flush();
+	}
+
+	public void endSuite(TestSuite suite) throws IOException {
+		writeCacheCounts();
+		this.out.write("</testsuite>\n");
+		this.out.flush();
+	}
+
+	static String describe(Command command) {
+		StringBuilder text = new StringBuilder(command.cmd);
+		if (command.args != null) {
+			text.append(' ').append(Arrays.asList(command.args));
+		}
+		text.append(": ").append(command.result);
+		if (command.screenshot != null) {
+			text.append(" (screenshot: ").append(command.screenshot).append(')');
+		}
+		if (command.source != null) {
+			text.append(" (source: ").append(command.source).append(')');
+		}
+		return text.toString();
+	}
+
+	static String stripExtension(String filename) {
+		int dot = filename.lastIndexOf('.');
+		return dot > 0 ? filename.substring(0, dot) : filename;
+	}
+
+	static String seconds(long millis) {
+		return String.format(Locale.US, "%.3f", millis / 1000.0);
+	}
+
+	static String timestamp() {
+		return String.format(Locale.US, "%1$tY-%1$tm-%1$tdT%1$tH:%1$tM:%1$tS", new Date());
+	}
+
+	static String escape(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<': escaped.append("&lt;"); break;
+			case '>': escaped.append("&gt;"); break;
+			case '&': escaped.append("&amp;"); break;
+			case '"': escaped.append("&quot;"); break;
+			default:
+				if (c < 0x20 && c != '\n' && c != '\t' && c != '\r') {
+					// not representable in XML 1.0
+					escaped.append('?');
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped.toString();
+	}
+}
@@ -0,0 +1,190 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+
+/**
+ * Reads back the JSON written by JsonReporter: objects become maps, arrays
+ * lists, integers Longs, other numbers Doubles.  Malformed input raises
+ * IllegalArgumentException.
+ */
+class JsonParser {
+	final String text;
+	int position;
+
+	JsonParser(String text) {
+		this.text = text;
+	}
+
+	static Map<String, Object> parseObject(String text) {
+		JsonParser parser = new JsonParser(text);
+		parser.skipSpace();
+		if (parser.peek() != '{') {
+			throw new IllegalArgumentException("expected one JSON object");
+		}
+		Map<String, Object> object = parser.object();
+		parser.skipSpace();
+		if (parser.position != text.length()) {
+			throw new IllegalArgumentException("expected one JSON object");
+		}
+		return object;
+	}
+
+	Object value() {
+		skipSpace();
+		if (this.position >= this.text.length()) {
+			throw error("unexpected end");
+		}
+		char c = this.text.charAt(this.position);
+		if (c == '{') {
+			return object();
+		} else if (c == '[') {
+			this.position++;
+			List<Object> array = new ArrayList<Object>();
+			skipSpace();
+			if (peek() == ']') {
+				this.position++;
+				return array;
+			}
+			while (true) {
+				array.add(value());
+				skipSpace();
+				if (peek() == ',') {
+					this.position++;
+				} else {
+					expect(']');
+					return array;
+				}
+			}
+		} else if (c == '"') {
+			return string();
+		} else if (this.text.startsWith("true", this.position)) {
+			this.position += 4;
+			return Boolean.TRUE;
+		} else if (this.text.startsWith("false", this.position)) {
+			this.position += 5;
+			return Boolean.FALSE;
+		} else if (this.text.startsWith("null", this.position)) {
+			this.position += 4;
+			return null;
+		} else {
+			return number();
+		}
+	}
+
+	Map<String, Object> object() {
+		expect('{');
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		skipSpace();
+		if (peek() == '}') {
+			this.position++;
+			return object;
+		}
+		while (true) {
+			skipSpace();
+			if (peek() != '"') {
+				throw error("expected a name");
+			}
+			String name = string();
+			skipSpace();
+			expect(':');
+			object.put(name, value());
+			skipSpace();
+			if (peek() == ',') {
+				this.position++;
+			} else {
+				expect('}');
+				return object;
+			}
+		}
+	}
+
+	String string() {
+		expect('"');
+		StringBuilder value = new StringBuilder();
+		while (true) {
+			if (this.position >= this.text.length()) {
+				throw error("unterminated string");
+			}
+			char c = this.text.charAt(this.position++);
+			if (c == '"') {
+				return value.toString();
+			} else if (c != '\\') {
+				value.append(c);
+			} else if (this.position >= this.text.length()) {
+				throw error("unterminated string");
+			} else {
+				char escaped = this.text.charAt(this.position++);
+				switch (escaped) {
+				case 'n': value.append('\n'); break;
+				case 'r': value.append('\r'); break;
+				case 't': value.append('\t'); break;
+				case 'b': value.append('\b'); break;
+				case 'f': value.append('\f'); break;
+				case 'u':
+					if (this.position + 4 > this.text.length()) {
+						throw error("bad escape");
+					}
+					try {
+						value.append((char) Integer.parseInt(this.text.substring(this.position, this.position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("bad escape");
+					}
+					this.position += 4;
+					break;
+				default: value.append(escaped);
+				}
+			}
+		}
+	}
+
+	Object number() {
+		int start = this.position;
+		while (this.position < this.text.length() && "+-0123456789.eE".indexOf(this.text.charAt(this.position)) >= 0) {
+			this.position++;
+		}
+		String number = this.text.substring(start, this.position);
+		try {
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+				return Long.valueOf(number);
+			}
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw error("unexpected character");
+		}
+	}
+
+	char peek() {
+		return this.position < this.text.length() ? this.text.charAt(this.position) : 0;
+	}
+
+	void expect(char c) {
+		if (peek() != c) {
+			throw error("expected '" + c + "'");
+		}
+		this.position++;
+	}
+
+	void skipSpace() {
+		while (this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+			this.position++;
+		}
+	}
+
+	IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at column " + (this.position + 1));
+	}
+}
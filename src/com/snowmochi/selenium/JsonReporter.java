@@ -0,0 +1,130 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Writes one JSON object per line for every event, flushing as it goes so
+ * the output can be followed while the run is in progress.
+ */
+class JsonReporter implements ResultReporter {
+	final Writer out;
+	String browser;
+
+	JsonReporter(Writer out) {
+		this.out = out;
+	}
+
+	public void setBrowser(String browser) {
+		this.browser = browser;
+	}
+
+	void writeLine(String json) throws IOException {
+		this.out.write(json);
+		this.out.write('\n');
+		this.out.flush();
+	}
+
+	public void startSuite(TestSuite suite) throws IOException {
+		String shard = "";
+		if (suite.shard != null) {
+			shard = ",\"shard\":" + quote(suite.shard) + ",\"shardPlan\":" + quote(suite.shardPlan);
+		}
+		writeLine("{\"event\":\"startSuite\",\"name\":" + quote(suite.name.trim())
+			+ ",\"file\":" + quote(suite.file.getPath())
+			+ ",\"browser\":" + quote(this.browser) + shard + "}");
+	}
+
+	public void startTest(Test test) throws IOException {
+		writeLine("{\"event\":\"startTest\",\"label\":" + quote(test.label)
+			+ ",\"file\":" + quote(test.file.getPath())
+			+ ",\"name\":" + quote(test.name == null ? null : test.name.trim()) + "}");
+	}
+
+	public void command(Test test, Command command) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"event\":\"command\",\"file\":").append(quote(test.file.getPath()));
+		json.append(",\"cmd\":").append(quote(command.cmd));
+		json.append(",\"args\":");
+		if (command.args == null) {
+			json.append("null");
+		} else {
+			json.append('[');
+			for (int i = 0; i < command.args.length; i++) {
+				if (i > 0) json.append(',');
+				json.append(quote(command.args[i]));
+			}
+			json.append(']');
+		}
+		json.append(",\"result\":").append(quote(command.result));
+		json.append(",\"error\":").append(command.error);
+		json.append(",\"failure\":").append(command.failure);
+		json.append(",\"time\":").append(command.time);
+		if (command.retries > 0 || command.recovered) {
+			json.append(",\"retries\":").append(command.retries);
+			json.append(",\"recovered\":").append(command.recovered);
+		}
+		if (command.cache != null) {
+			json.append(",\"cache\":").append(quote(command.cache));
+		}
+		if (command.screenshot != null || command.source != null) {
+			json.append(",\"screenshot\":").append(quote(command.screenshot));
+			json.append(",\"source\":").append(quote(command.source));
+		}
+		json.append('}');
+		writeLine(json.toString());
+	}
+
+	public void endTest(Test test) throws IOException {
+		writeLine("{\"event\":\"endTest\",\"file\":" + quote(test.file.getPath())
+			+ ",\"result\":" + test.result
+			+ ",\"time\":" + test.time
+			+ ",\"retries\":" + test.retries
+			+ ",\"recoveries\":" + test.recoveries
+			+ ",\"error\":" + quote(test.error) + "}");
+	}
+
+	public void endSuite(TestSuite suite) throws IOException {
+		writeLine("{\"event\":\"endSuite\",\"name\":" + quote(suite.name.trim())
+			+ ",\"result\":" + suite.result + "}");
+	}
+
+	static String quote(String text) {
+		if (text == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder(text.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"': quoted.append("\\\""); break;
+			case '\\': quoted.append("\\\\"); break;
+			case '\n': quoted.append("\\n"); break;
+			case '\r': quoted.append("\\r"); break;
+			case '\t': quoted.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format("\\u%04x", (int) c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
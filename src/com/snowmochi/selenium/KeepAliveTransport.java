@@ -0,0 +1,235 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Sends Selenese commands to an RC server over one persistent HTTP/1.1
+ * connection, instead of the new connection HttpCommandProcessor opens
+ * (and disconnects) for every command.  The request and response buffers
+ * are reused between commands.  One transport serves one session and is not
+ * meant to be shared between threads.
+ */
+class KeepAliveTransport {
+	static final String DRIVER_PATH = "/selenium-server/driver/";
+
+	final String host;
+	final int port;
+	Socket socket;
+	InputStream in;
+	OutputStream out;
+	final ByteArrayOutputStream request = new ByteArrayOutputStream(1024);
+	byte body[] = new byte[4096];
+	boolean responding;
+
+	KeepAliveTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		HttpStatusException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Posts a form-encoded command body and returns the response text.  A
+	 * kept-alive connection the server dropped while idle (closed or reset
+	 * before any of the response arrived) is replaced once; any other failure
+	 * is reported as is, since the server may already have run the command.
+	 */
+	public synchronized String execute(String commandBody) throws IOException {
+		byte content[] = commandBody.getBytes("UTF-8");
+		while (true) {
+			boolean reused = this.socket != null;
+			if (!reused) {
+				connect();
+			}
+			this.responding = false;
+			try {
+				writeRequest(content);
+				return readResponse();
+			} catch (IOException e) {
+				close();
+				if (!reused || this.responding
+						|| !(e instanceof EOFException || e instanceof SocketException)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	void connect() throws IOException {
+		Socket socket = new Socket(this.host, this.port);
+		socket.setTcpNoDelay(true);
+		this.socket = socket;
+		this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+	}
+
+	void writeRequest(byte content[]) throws IOException {
+		this.request.reset();
+		String head = "POST " + DRIVER_PATH + " HTTP/1.1\r\n"
+			+ "Host: " + this.host + ":" + this.port + "\r\n"
+			+ "Content-Type: application/x-www-form-urlencoded; charset=utf-8\r\n"
+			+ "Content-Length: " + content.length + "\r\n"
+			+ "\r\n";
+		for (int i = 0; i < head.length(); i++) {
+			this.request.write(head.charAt(i));
+		}
+		this.request.write(content);
+		this.request.writeTo(this.out);
+		this.out.flush();
+	}
+
+	String readResponse() throws IOException {
+		this.in.mark(1);
+		if (this.in.read() < 0) {
+			throw new EOFException("connection closed by server");
+		}
+		this.in.reset();
+		this.responding = true;
+		String statusLine = readLine();
+		String status[] = statusLine.split(" ", 3);
+		int code = status.length > 1 ? Integer.parseInt(status[1]) : -1;
+		int contentLength = -1;
+		boolean chunked = false;
+		boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+		String line;
+		while ((line = readLine()) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				contentLength = Integer.parseInt(value);
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.equalsIgnoreCase("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				keepAlive = value.equalsIgnoreCase("keep-alive");
+			}
+		}
+		int length;
+		if (chunked) {
+			length = readChunked();
+		} else if (contentLength >= 0) {
+			ensureCapacity(contentLength);
+			readFully(0, contentLength);
+			length = contentLength;
+		} else {
+			length = readToEnd();
+			keepAlive = false;
+		}
+		String response = new String(this.body, 0, length, "UTF-8");
+		if (!keepAlive) {
+			close();
+		}
+		if (code != 200) {
+			throw new HttpStatusException(status.length > 2 ? status[2] : statusLine);
+		}
+		return response;
+	}
+
+	int readChunked() throws IOException {
+		int length = 0;
+		while (true) {
+			String sizeLine = readLine();
+			if (sizeLine == null) {
+				throw new EOFException("truncated chunked response");
+			}
+			int semicolon = sizeLine.indexOf(';');
+			int size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+			if (size == 0) {
+				// skip any trailers
+				String trailer;
+				while ((trailer = readLine()) != null && trailer.length() > 0) {
+				}
+				return length;
+			}
+			ensureCapacity(length + size);
+			readFully(length, size);
+			length += size;
+			readLine();
+		}
+	}
+
+	int readToEnd() throws IOException {
+		int length = 0;
+		int count;
+		while (true) {
+			ensureCapacity(length + 1024);
+			count = this.in.read(this.body, length, this.body.length - length);
+			if (count < 0) {
+				return length;
+			}
+			length += count;
+		}
+	}
+
+	void readFully(int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = this.in.read(this.body, offset, length);
+			if (count < 0) {
+				throw new EOFException("truncated response");
+			}
+			offset += count;
+			length -= count;
+		}
+	}
+
+	void ensureCapacity(int capacity) {
+		if (this.body.length < capacity) {
+			byte larger[] = new byte[Math.max(capacity, this.body.length * 2)];
+			System.arraycopy(this.body, 0, larger, 0, this.body.length);
+			this.body = larger;
+		}
+	}
+
+	String readLine() throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = this.in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	public synchronized void close() {
+		if (this.socket != null) {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			this.socket = null;
+			this.in = null;
+			this.out = null;
+		}
+	}
+}
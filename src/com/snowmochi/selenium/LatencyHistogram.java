@@ -0,0 +1,92 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+/**
+ * A fixed-size log-linear histogram of latencies in microseconds.  Values
+ * below 16 are counted exactly; above that every power of two is split
+ * into 16 buckets, so a reported percentile is within about 6% of the true
+ * value while memory stays constant however many samples are recorded.
+ */
+class LatencyHistogram {
+	static final int SUB_BUCKETS = 16;
+	static final int BUCKETS = SUB_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+	final long counts[] = new long[BUCKETS];
+	long count;
+	long total;
+	long max;
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - 4;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+
+	public synchronized void record(long micros) {
+		this.counts[bucket(micros)]++;
+		this.count++;
+		this.total += micros;
+		this.max = Math.max(this.max, micros);
+	}
+
+	public synchronized long getCount() {
+		return this.count;
+	}
+
+	public synchronized long getTotal() {
+		return this.total;
+	}
+
+	public synchronized long getMax() {
+		return this.max;
+	}
+
+	public synchronized double getMean() {
+		return this.count == 0 ? 0 : (double) this.total / this.count;
+	}
+
+	/**
+	 * Returns the smallest bucket bound covering the given fraction (0-1) of
+	 * samples, never more than the largest value seen.
+	 */
+	public synchronized long getPercentile(double fraction) {
+		if (this.count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * this.count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(upperBound(i), this.max);
+			}
+		}
+		return this.max;
+	}
+}
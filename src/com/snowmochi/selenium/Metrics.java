@@ -0,0 +1,235 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Latency histograms for a run: one per Selenese command name, plus the
+ * session start/stop, batched accessor and whole-test timings under
+ * parenthesized names.  Shared by every client working on the run.
+ */
+public class Metrics implements MetricsMBean {
+	static final String SESSION_START = "(session start)";
+	static final String SESSION_STOP = "(session stop)";
+	static final String BATCH = "(batch)";
+	static final String TEST = "(test)";
+
+	static class TestTime {
+		final String file;
+		final long millis;
+
+		TestTime(String file, long millis) {
+			this.file = file;
+			this.millis = millis;
+		}
+	}
+
+	final Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+	long testsCompleted;
+	long testsFailed;
+	long cacheHits;
+	long cacheMisses;
+	final List<TestTime> testTimes = new ArrayList<TestTime>();
+
+	public Metrics() {
+	}
+
+	LatencyHistogram histogram(String name) {
+		synchronized (this.histograms) {
+			LatencyHistogram histogram = this.histograms.get(name);
+			if (histogram == null) {
+				histogram = new LatencyHistogram();
+				this.histograms.put(name, histogram);
+			}
+			return histogram;
+		}
+	}
+
+	public void record(String name, long nanos) {
+		histogram(name).record(nanos / 1000);
+	}
+
+	public void recordTest(File file, boolean result, long millis) {
+		histogram(TEST).record(millis * 1000);
+		synchronized (this) {
+			this.testsCompleted++;
+			if (!result) {
+				this.testsFailed++;
+			}
+			this.testTimes.add(new TestTime(file.getPath(), millis));
+		}
+	}
+
+	public synchronized void recordCacheLookup(boolean hit) {
+		if (hit) {
+			this.cacheHits++;
+		} else {
+			this.cacheMisses++;
+		}
+	}
+
+	public synchronized long getAccessorCacheHits() {
+		return this.cacheHits;
+	}
+
+	public synchronized long getAccessorCacheMisses() {
+		return this.cacheMisses;
+	}
+
+	public synchronized long getTestsCompleted() {
+		return this.testsCompleted;
+	}
+
+	public synchronized long getTestsFailed() {
+		return this.testsFailed;
+	}
+
+	public long getCommandsExecuted() {
+		long count = 0;
+		for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+			if (!entry.getKey().startsWith("(")) {
+				count += entry.getValue().getCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the total time the driver spent waiting on command and session
+	 * round-trips, leaving out whole tests and local pauses.
+	 */
+	public long getRoundTripMicros() {
+		long total = 0;
+		for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+			if (!entry.getKey().equals(TEST) && !entry.getKey().equals("pause")) {
+				total += entry.getValue().getTotal();
+			}
+		}
+		return total;
+	}
+
+	public String[] getLatencies() {
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			lines.add(entry.getKey() + " count=" + histogram.getCount()
+				+ " mean=" + millis(histogram.getMean())
+				+ " p50=" + millis(histogram.getPercentile(0.50))
+				+ " p95=" + millis(histogram.getPercentile(0.95))
+				+ " p99=" + millis(histogram.getPercentile(0.99))
+				+ " max=" + millis(histogram.getMax()));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	Map<String, LatencyHistogram> snapshot() {
+		synchronized (this.histograms) {
+			return new TreeMap<String, LatencyHistogram>(this.histograms);
+		}
+	}
+
+	static String millis(double micros) {
+		return String.format(Locale.US, "%.1f", micros / 1000.0);
+	}
+
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.snowmochi.selenium:type=Metrics");
+		// a daemon registers each job's metrics in turn
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+	}
+
+	/**
+	 * Writes the latency table and per-test times as CSV, or as JSON if the
+	 * filename ends in .json.
+	 */
+	public void write(File file) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			if (file.getName().endsWith(".json")) {
+				writeJson(out);
+			} else {
+				writeCsv(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	void writeCsv(Writer out) throws IOException {
+		out.write("name,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+		for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			out.write(csv(entry.getKey()) + "," + histogram.getCount()
+				+ "," + millis(histogram.getMean())
+				+ "," + millis(histogram.getPercentile(0.50))
+				+ "," + millis(histogram.getPercentile(0.95))
+				+ "," + millis(histogram.getPercentile(0.99))
+				+ "," + millis(histogram.getMax()) + "\n");
+		}
+		if (getAccessorCacheHits() + getAccessorCacheMisses() > 0) {
+			out.write("\naccessor_cache_hits,accessor_cache_misses\n");
+			out.write(getAccessorCacheHits() + "," + getAccessorCacheMisses() + "\n");
+		}
+		out.write("\ntest,time_ms\n");
+		synchronized (this) {
+			for (TestTime test : this.testTimes) {
+				out.write(csv(test.file) + "," + test.millis + "\n");
+			}
+		}
+	}
+
+	void writeJson(Writer out) throws IOException {
+		out.write("{\"latencies\":{");
+		boolean first = true;
+		for (Map.Entry<String, LatencyHistogram> entry : snapshot().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			if (!first) out.write(",");
+			first = false;
+			out.write("\n" + JsonReporter.quote(entry.getKey()) + ":{\"count\":" + histogram.getCount()
+				+ ",\"mean\":" + millis(histogram.getMean())
+				+ ",\"p50\":" + millis(histogram.getPercentile(0.50))
+				+ ",\"p95\":" + millis(histogram.getPercentile(0.95))
+				+ ",\"p99\":" + millis(histogram.getPercentile(0.99))
+				+ ",\"max\":" + millis(histogram.getMax()) + "}");
+		}
+		out.write("},\n\"accessorCache\":{\"hits\":" + getAccessorCacheHits()
+			+ ",\"misses\":" + getAccessorCacheMisses() + "}");
+		out.write(",\n\"tests\":[");
+		synchronized (this) {
+			first = true;
+			for (TestTime test : this.testTimes) {
+				if (!first) out.write(",");
+				first = false;
+				out.write("\n{\"file\":" + JsonReporter.quote(test.file) + ",\"time\":" + test.millis + "}");
+			}
+		}
+		out.write("]}\n");
+	}
+
+	static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,35 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+/**
+ * JMX view of a run's {@link Metrics}, for watching long runs live.
+ */
+public interface MetricsMBean {
+	long getTestsCompleted();
+
+	long getTestsFailed();
+
+	long getCommandsExecuted();
+
+	long getAccessorCacheHits();
+
+	long getAccessorCacheMisses();
+
+	/**
+	 * One line per timed name: count, mean, p50, p95, p99 and max in ms.
+	 */
+	String[] getLatencies();
+}
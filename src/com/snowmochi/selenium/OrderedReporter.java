@@ -0,0 +1,101 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Serializes events from concurrently running tests so that the wrapped
+ * reporter sees the tests one at a time, in suite order.  The test at the
+ * head of the suite is passed through live; events for tests further
+ * down are held until every test before them has ended.
+ */
+class OrderedReporter implements ResultReporter {
+	static class Held {
+		final List<Command> commands = new ArrayList<Command>();
+		boolean ended;
+	}
+
+	final ResultReporter delegate;
+	final LinkedList<Test> expected = new LinkedList<Test>();
+	final Map<Test, Held> held = new IdentityHashMap<Test, Held>();
+
+	OrderedReporter(ResultReporter delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Registers the next test in suite order.
+	 */
+	public synchronized void expect(Test test) {
+		this.expected.addLast(test);
+	}
+
+	boolean isHead(Test test) {
+		return !this.expected.isEmpty() && this.expected.getFirst() == test;
+	}
+
+	public synchronized void startSuite(TestSuite suite) throws IOException {
+		this.delegate.startSuite(suite);
+	}
+
+	public synchronized void startTest(Test test) throws IOException {
+		if (isHead(test)) {
+			this.delegate.startTest(test);
+		} else {
+			this.held.put(test, new Held());
+		}
+	}
+
+	public synchronized void command(Test test, Command command) throws IOException {
+		if (isHead(test)) {
+			this.delegate.command(test, command);
+		} else {
+			this.held.get(test).commands.add(command);
+		}
+	}
+
+	public synchronized void endTest(Test test) throws IOException {
+		if (!isHead(test)) {
+			this.held.get(test).ended = true;
+			return;
+		}
+		this.delegate.endTest(test);
+		this.expected.removeFirst();
+		// catch up on whatever the new head did while it was waiting
+		while (!this.expected.isEmpty()) {
+			Test head = this.expected.getFirst();
+			Held events = this.held.remove(head);
+			if (events == null) {
+				break;
+			}
+			this.delegate.startTest(head);
+			for (Command command : events.commands) {
+				this.delegate.command(head, command);
+			}
+			if (!events.ended) {
+				break;
+			}
+			this.delegate.endTest(head);
+			this.expected.removeFirst();
+		}
+	}
+
+	public synchronized void endSuite(TestSuite suite) throws IOException {
+		this.delegate.endSuite(suite);
+	}
+}
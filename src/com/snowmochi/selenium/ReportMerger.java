@@ -0,0 +1,298 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Combines the results of a suite run in slices with --shard:
+ *
+ * ReportMerger [--format html|junit|json] [--out file] report.json...
+ *     reads the shards' --format json reports and writes one suite report,
+ *     checking that every slice of the same split is present
+ * ReportMerger --manifest merged shard.manifest...
+ *     combines the shards' manifests, keeping each test's latest entry, so
+ *     that the next split has every test's duration
+ *
+ * The exit status is 1 if a shard is missing or the shards were split
+ * differently, in which case the merged suite is marked failed.
+ */
+public class ReportMerger {
+	static class ShardReport {
+		TestSuite suite = new TestSuite();
+		String browser;
+		boolean ended;
+		List<Test> tests = new ArrayList<Test>();
+	}
+
+	final List<ShardReport> reports = new ArrayList<ShardReport>();
+	boolean consistent = true;
+
+	public static void main(String args[]) throws IOException {
+		String format = "html";
+		String outFilename = null;
+		String manifestFilename = null;
+		List<String> inputs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ((args[i].equals("--format") || args[i].equals("--out") || args[i].equals("--manifest"))
+					&& i + 1 < args.length) {
+				if (args[i].equals("--format")) {
+					format = args[++i];
+				} else if (args[i].equals("--out")) {
+					outFilename = args[++i];
+				} else {
+					manifestFilename = args[++i];
+				}
+			} else if (args[i].startsWith("--")) {
+				inputs.clear();
+				break;
+			} else {
+				inputs.add(args[i]);
+			}
+		}
+		if (inputs.isEmpty()) {
+			System.err.println("Usage: ReportMerger [--format html|junit|json] [--out file] report.json...");
+			System.err.println("       ReportMerger --manifest merged shard.manifest...");
+			System.exit(1);
+		}
+		if (manifestFilename != null) {
+			RunManifest merged = new RunManifest(new File(manifestFilename));
+			for (String input : inputs) {
+				RunManifest manifest = new RunManifest(new File(input));
+				manifest.load();
+				merged.merge(manifest);
+			}
+			merged.save();
+			return;
+		}
+		ReportMerger merger = new ReportMerger();
+		for (String input : inputs) {
+			merger.read(new File(input));
+		}
+		Writer out = outFilename == null ? new OutputStreamWriter(System.out) : new FileWriter(outFilename);
+		try {
+			merger.write(merger.createReporter(format, out));
+		} finally {
+			out.close();
+		}
+		System.exit(merger.consistent ? 0 : 1);
+	}
+
+	/**
+	 * Reads the suites in a JSON report, one event per line.
+	 */
+	void read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			ShardReport report = null;
+			Map<String, Test> running = new HashMap<String, Test>();
+			Map<Test, List<Command>> commands = new IdentityHashMap<Test, List<Command>>();
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				Map<String, Object> event;
+				try {
+					event = JsonParser.parseObject(line);
+				} catch (IllegalArgumentException e) {
+					// most likely cut off when its shard was killed
+					System.err.println("Warning: Ignoring " + file + " from line " + lineNumber + ": " + e.getMessage());
+					this.consistent = false;
+					break;
+				}
+				String type = string(event, "event");
+				if ("startSuite".equals(type)) {
+					report = new ShardReport();
+					report.suite.name = string(event, "name");
+					report.suite.file = new File(string(event, "file"));
+					report.suite.shard = string(event, "shard");
+					report.suite.shardPlan = string(event, "shardPlan");
+					report.browser = string(event, "browser");
+					this.reports.add(report);
+				} else if (report == null) {
+					throw new IOException(file + " is not a suite report");
+				} else if ("startTest".equals(type)) {
+					Test test = new Test();
+					test.label = string(event, "label");
+					test.file = new File(string(event, "file"));
+					test.name = string(event, "name");
+					test.error = "No result recorded";
+					running.put(test.file.getPath(), test);
+					commands.put(test, new ArrayList<Command>());
+					report.tests.add(test);
+				} else if ("command".equals(type)) {
+					Test test = running.get(string(event, "file"));
+					if (test != null) {
+						commands.get(test).add(command(event));
+					}
+				} else if ("endTest".equals(type)) {
+					Test test = running.remove(string(event, "file"));
+					if (test != null) {
+						test.result = bool(event, "result");
+						test.time = number(event, "time");
+						test.retries = (int) number(event, "retries");
+						test.recoveries = (int) number(event, "recoveries");
+						test.error = string(event, "error");
+					}
+				} else if ("endSuite".equals(type)) {
+					report.ended = true;
+					report.suite.result = bool(event, "result");
+				}
+			}
+			for (Map.Entry<Test, List<Command>> entry : commands.entrySet()) {
+				List<Command> list = entry.getValue();
+				entry.getKey().commands = list.toArray(new Command[list.size()]);
+			}
+			if (report != null && !report.ended) {
+				System.err.println("Warning: " + file + " ends before its suite finished");
+				this.consistent = false;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static Command command(Map<String, Object> event) {
+		Command command = new Command();
+		command.cmd = string(event, "cmd");
+		Object args = event.get("args");
+		if (args instanceof List) {
+			List<?> list = (List<?>) args;
+			command.args = new String[list.size()];
+			for (int i = 0; i < list.size(); i++) {
+				command.args[i] = (String) list.get(i);
+			}
+		}
+		command.result = string(event, "result");
+		command.error = bool(event, "error");
+		command.failure = bool(event, "failure");
+		command.time = number(event, "time");
+		command.retries = (int) number(event, "retries");
+		command.recovered = bool(event, "recovered");
+		command.cache = string(event, "cache");
+		command.screenshot = string(event, "screenshot");
+		command.source = string(event, "source");
+		return command;
+	}
+
+	static String string(Map<String, Object> event, String key) {
+		Object value = event.get(key);
+		return value instanceof String ? (String) value : null;
+	}
+
+	static boolean bool(Map<String, Object> event, String key) {
+		return Boolean.TRUE.equals(event.get(key));
+	}
+
+	static long number(Map<String, Object> event, String key) {
+		Object value = event.get(key);
+		return value instanceof Long ? ((Long) value).longValue() : 0;
+	}
+
+	/**
+	 * Puts the shards in order and checks that they add up to one whole
+	 * split: the same slice count and split fingerprint, each slice once.
+	 */
+	List<ShardReport> checkShards() {
+		List<ShardReport> ordered = new ArrayList<ShardReport>(this.reports);
+		Collections.sort(ordered, new Comparator<ShardReport>() {
+			public int compare(ShardReport a, ShardReport b) {
+				return index(a) - index(b);
+			}
+		});
+		String plan = null;
+		int count = 0;
+		Set<Integer> seen = new HashSet<Integer>();
+		for (ShardReport report : ordered) {
+			if (report.suite.shard == null) {
+				continue;
+			}
+			int shardCount = Integer.parseInt(report.suite.shard.substring(report.suite.shard.indexOf('/') + 1));
+			if (plan == null) {
+				plan = report.suite.shardPlan;
+				count = shardCount;
+			} else if (!plan.equals(report.suite.shardPlan) || count != shardCount) {
+				System.err.println("Warning: Shard " + report.suite.shard + " was split differently from the others;"
+					+ " tests may have been skipped or run twice");
+				this.consistent = false;
+			}
+			if (!seen.add(Integer.valueOf(index(report)))) {
+				System.err.println("Warning: Shard " + report.suite.shard + " appears more than once");
+				this.consistent = false;
+			}
+		}
+		for (int i = 1; i <= count; i++) {
+			if (!seen.contains(Integer.valueOf(i))) {
+				System.err.println("Warning: Shard " + i + "/" + count + " is missing");
+				this.consistent = false;
+			}
+		}
+		return ordered;
+	}
+
+	static int index(ShardReport report) {
+		if (report.suite.shard == null) {
+			return Integer.MAX_VALUE;
+		}
+		return Integer.parseInt(report.suite.shard.substring(0, report.suite.shard.indexOf('/')));
+	}
+
+	ResultReporter createReporter(String format, Writer out) {
+		if (format.equals("junit")) {
+			return new JUnitXmlReporter(out);
+		} else if (format.equals("json")) {
+			JsonReporter reporter = new JsonReporter(out);
+			reporter.setBrowser(browser());
+			return reporter;
+		} else {
+			return new HtmlReporter(out, browser());
+		}
+	}
+
+	String browser() {
+		return this.reports.isEmpty() ? null : this.reports.get(0).browser;
+	}
+
+	/**
+	 * Replays the shards' tests, slice by slice, as one suite.
+	 */
+	void write(ResultReporter reporter) throws IOException {
+		List<ShardReport> ordered = checkShards();
+		TestSuite merged = new TestSuite();
+		merged.name = ordered.isEmpty() ? "" : ordered.get(0).suite.name;
+		merged.file = ordered.isEmpty() ? new File("") : ordered.get(0).suite.file;
+		merged.result = this.consistent;
+		List<Test> tests = new ArrayList<Test>();
+		for (ShardReport report : ordered) {
+			tests.addAll(report.tests);
+		}
+		merged.tests = tests.toArray(new Test[tests.size()]);
+		reporter.startSuite(merged);
+		for (Test test : merged.tests) {
+			reporter.startTest(test);
+			for (Command command : test.commands) {
+				reporter.command(test, command);
+			}
+			reporter.endTest(test);
+			merged.result &= test.result;
+		}
+		reporter.endSuite(merged);
+	}
+}
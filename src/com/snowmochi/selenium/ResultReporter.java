@@ -0,0 +1,35 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Receives results as a run progresses.  Suite events are only sent when a
+ * suite is being run; command events for a test arrive between its
+ * startTest and endTest, in execution order.
+ */
+interface ResultReporter {
+	void startSuite(TestSuite suite) throws IOException;
+
+	void startTest(Test test) throws IOException;
+
+	void command(Test test, Command command) throws IOException;
+
+	void endTest(Test test) throws IOException;
+
+	void endSuite(TestSuite suite) throws IOException;
+}
@@ -0,0 +1,75 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+
+/**
+ * Decides which command failures are worth another try.  Transport errors
+ * (the request never got a proper answer) are retried on the same session
+ * after a growing pause; a session the server no longer knows, or one that
+ * still cannot be reached once the retries are used up, is replaced by a
+ * new session on which the test is replayed from its last open.
+ */
+class RetryPolicy {
+	static final long DEFAULT_BACKOFF = 500;
+	static final long MAX_BACKOFF = 30000;
+
+	int retries;
+	long backoff = DEFAULT_BACKOFF;
+
+	public void setRetries(int retries) {
+		this.retries = retries;
+	}
+
+	public int getRetries() {
+		return this.retries;
+	}
+
+	public void setBackoff(long backoff) {
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Sleeps before the given retry, doubling the pause each time.
+	 */
+	public void pause(int attempt) throws InterruptedException {
+		Thread.sleep(Math.min(this.backoff << Math.min(attempt, 16), MAX_BACKOFF));
+	}
+
+	/**
+	 * Returns whether the failure came from talking to the server rather
+	 * than from the command itself.
+	 */
+	static boolean isTransient(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the session behind a failed command is gone.
+	 */
+	static boolean isSessionLost(Throwable e) {
+		String message = e.getMessage();
+		if (message != null && message.indexOf("doesn't exist; perhaps this session was already stopped") >= 0) {
+			return true;
+		}
+		return isTransient(e);
+	}
+}
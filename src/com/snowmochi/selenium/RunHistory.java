@@ -0,0 +1,384 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * An append-only binary log of every run's test and command outcomes and
+ * timings, kept compact enough to hold years of nightly runs and scanned
+ * through memory-mapped windows.  After a four byte magic number the file
+ * holds records, each a tag byte followed by unsigned varints:
+ *
+ *   NAME    length, UTF-8 bytes      defines the next name id (files, commands, suites)
+ *   RUN     start time, name id      the tests that follow belong to this run
+ *   TEST    name id, result, ms      the commands that follow belong to this test
+ *   LABEL   name id                  the test's label, which --shard keys durations by
+ *   COMMAND name id, status, ms      status is OK, ERROR or FAILURE
+ *
+ * A test and its commands are appended in one write; a torn write at the end
+ * of the file is cut off the next time the history is opened, but damage
+ * anywhere else is reported rather than repaired.  A run holds an exclusive
+ * lock on the file while it has it open for appending.
+ */
+class RunHistory {
+	static final byte MAGIC[] = { 'S', 'H', 'H', '1' };
+	static final int NAME = 1;
+	static final int RUN = 2;
+	static final int TEST = 3;
+	static final int COMMAND = 4;
+	static final int LABEL = 5;
+	static final int OK = 0;
+	static final int ERROR = 1;
+	static final int FAILURE = 2;
+	static final int MAX_NAME_BYTES = 4096;
+	static final int MAX_RECORD = 1 + 5 + MAX_NAME_BYTES;
+	static final long WINDOW_SIZE = 64 << 20;
+
+	interface Visitor {
+		void run(int run, long time, int name);
+
+		void test(int run, int name, boolean passed, int millis);
+
+		void label(int run, int test, int name);
+
+		void command(int run, int test, int name, int status, int millis);
+	}
+
+	final File file;
+	final List<String> names = new ArrayList<String>();
+	final Map<String, Integer> ids = new HashMap<String, Integer>();
+	int runCount;
+	RandomAccessFile output;
+	FileLock lock;
+	byte buffer[] = new byte[8192];
+	int length;
+
+	RunHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens a history for reading and appending, creating it if needed and
+	 * dropping any partly written record at its end.
+	 */
+	public static RunHistory open(File file) throws IOException {
+		RunHistory history = new RunHistory(file);
+		history.output = new RandomAccessFile(file, "rw");
+		try {
+			history.lock = history.output.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// already locked within this JVM
+		}
+		if (history.lock == null) {
+			history.output.close();
+			throw new IOException(file + " is in use by another run");
+		}
+		long end;
+		try {
+			end = history.scan(null);
+		} catch (IOException e) {
+			history.close();
+			throw e;
+		}
+		if (history.output.length() == 0) {
+			history.output.write(MAGIC);
+		} else if (history.output.length() > end) {
+			System.err.println("Warning: Dropping " + (history.output.length() - end)
+				+ " bytes of incomplete history from " + file);
+			history.output.setLength(end);
+		}
+		history.output.seek(history.output.length());
+		return history;
+	}
+
+	public int getRunCount() {
+		return this.runCount;
+	}
+
+	public int getNameCount() {
+		return this.names.size();
+	}
+
+	public String getName(int id) {
+		return this.names.get(id);
+	}
+
+	public synchronized void startRun(String name) throws IOException {
+		this.length = 0;
+		int id = nameId(name);
+		putByte(RUN);
+		putVarint(System.currentTimeMillis());
+		putVarint(id);
+		flush();
+		this.runCount++;
+	}
+
+	/**
+	 * Appends a finished test with the commands it ran.
+	 */
+	public synchronized void record(Test test) throws IOException {
+		this.length = 0;
+		int testId = nameId(test.file.getAbsolutePath());
+		int labelId = nameId(Shard.durationKey(test));
+		int commandIds[] = null;
+		if (test.commands != null) {
+			commandIds = new int[test.commands.length];
+			for (int i = 0; i < test.commands.length; i++) {
+				if (test.commands[i] != null) {
+					commandIds[i] = nameId(test.commands[i].cmd);
+				}
+			}
+		}
+		putByte(TEST);
+		putVarint(testId);
+		putVarint(test.result ? 1 : 0);
+		putVarint(test.time);
+		putByte(LABEL);
+		putVarint(labelId);
+		if (test.commands != null) {
+			for (int i = 0; i < test.commands.length; i++) {
+				Command command = test.commands[i];
+				if (command == null) {
+					// the test stopped before this step
+					break;
+				}
+				putByte(COMMAND);
+				putVarint(commandIds[i]);
+				putVarint(command.failure ? FAILURE : command.error ? ERROR : OK);
+				putVarint(command.time);
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the mean duration of each test in the history, by the label
+	 * Shard.durationKey gives it.  Tests recorded without a label are left
+	 * out.
+	 */
+	public synchronized Map<String, Long> testDurations() throws IOException {
+		final Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+		scan(new Visitor() {
+			int millis;
+
+			public void run(int run, long time, int name) {
+			}
+
+			public void test(int run, int name, boolean passed, int millis) {
+				this.millis = millis;
+			}
+
+			public void label(int run, int test, int name) {
+				long total[] = totals.get(Integer.valueOf(name));
+				if (total == null) {
+					total = new long[2];
+					totals.put(Integer.valueOf(name), total);
+				}
+				total[0] += this.millis;
+				total[1]++;
+			}
+
+			public void command(int run, int test, int name, int status, int millis) {
+			}
+		});
+		Map<String, Long> durations = new HashMap<String, Long>();
+		for (Map.Entry<Integer, long[]> entry : totals.entrySet()) {
+			long total[] = entry.getValue();
+			durations.put(getName(entry.getKey().intValue()), Long.valueOf(total[0] / total[1]));
+		}
+		return durations;
+	}
+
+	public synchronized void close() throws IOException {
+		if (this.output != null) {
+			// closing the file releases the lock
+			this.output.close();
+			this.output = null;
+		}
+	}
+
+	/**
+	 * Returns the id for a name, queueing its NAME record in the buffer when
+	 * it is new.  Names are written ahead of the record using them.
+	 */
+	int nameId(String name) throws IOException {
+		Integer id = this.ids.get(name);
+		if (id != null) {
+			return id.intValue();
+		}
+		byte bytes[] = name.getBytes("UTF-8");
+		int byteCount = bytes.length;
+		if (byteCount > MAX_NAME_BYTES) {
+			// cut between characters, and key the name as it will read back
+			byteCount = MAX_NAME_BYTES;
+			while ((bytes[byteCount] & 0xc0) == 0x80) {
+				byteCount--;
+			}
+			name = new String(bytes, 0, byteCount, "UTF-8");
+			id = this.ids.get(name);
+			if (id != null) {
+				return id.intValue();
+			}
+		}
+		putByte(NAME);
+		putVarint(byteCount);
+		ensure(byteCount);
+		System.arraycopy(bytes, 0, this.buffer, this.length, byteCount);
+		this.length += byteCount;
+		addName(name);
+		return this.names.size() - 1;
+	}
+
+	void addName(String name) {
+		this.ids.put(name, Integer.valueOf(this.names.size()));
+		this.names.add(name);
+	}
+
+	void ensure(int count) {
+		if (this.length + count > this.buffer.length) {
+			byte grown[] = new byte[Math.max(this.buffer.length * 2, this.length + count)];
+			System.arraycopy(this.buffer, 0, grown, 0, this.length);
+			this.buffer = grown;
+		}
+	}
+
+	void putByte(int value) {
+		ensure(1);
+		this.buffer[this.length++] = (byte) value;
+	}
+
+	void putVarint(long value) {
+		ensure(10);
+		while ((value & ~0x7fL) != 0) {
+			this.buffer[this.length++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		this.buffer[this.length++] = (byte) value;
+	}
+
+	void flush() throws IOException {
+		this.output.write(this.buffer, 0, this.length);
+		this.length = 0;
+	}
+
+	/**
+	 * Reads the whole history, passing each record to the visitor (if any),
+	 * and returns the offset where the last complete record ends.  Names
+	 * and the run count are picked up along the way.  A record cut short by
+	 * the end of the file is left for open() to drop; a bad record before
+	 * that fails the scan.
+	 */
+	public long scan(Visitor visitor) throws IOException {
+		return scan(visitor, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the history up to the given offset, which should be one an
+	 * earlier scan returned, so that a reader sees the same names and runs
+	 * on every pass while a run goes on appending.
+	 */
+	public long scan(Visitor visitor, long end) throws IOException {
+		if (!this.file.exists() || this.file.length() == 0) {
+			return 0;
+		}
+		this.names.clear();
+		this.ids.clear();
+		this.runCount = 0;
+		// read through the locked file when it is open, since some platforms enforce the lock
+		RandomAccessFile input = this.output != null ? this.output : new RandomAccessFile(this.file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			long size = Math.min(channel.size(), end);
+			byte magic[] = new byte[MAGIC.length];
+			if (size < MAGIC.length || channel.read(ByteBuffer.wrap(magic), 0) != MAGIC.length
+					|| !Arrays.equals(magic, MAGIC)) {
+				throw new IOException(this.file + " is not a run history");
+			}
+			long base = MAGIC.length;
+			ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, WINDOW_SIZE));
+			int run = -1;
+			int test = -1;
+			while (base + window.position() < size) {
+				if (window.remaining() < MAX_RECORD && base + window.limit() < size) {
+					base += window.position();
+					window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, WINDOW_SIZE));
+				}
+				int start = window.position();
+				try {
+					int tag = window.get();
+					if (tag == NAME) {
+						int byteCount = (int) getVarint(window);
+						if (byteCount > MAX_NAME_BYTES) {
+							throw corrupt(base + start);
+						}
+						byte bytes[] = new byte[byteCount];
+						window.get(bytes);
+						addName(new String(bytes, "UTF-8"));
+					} else if (tag == RUN) {
+						long time = getVarint(window);
+						int name = (int) getVarint(window);
+						run = this.runCount++;
+						test = -1;
+						if (visitor != null) visitor.run(run, time, name);
+					} else if (tag == TEST) {
+						test = (int) getVarint(window);
+						boolean passed = getVarint(window) != 0;
+						int millis = (int) getVarint(window);
+						if (visitor != null) visitor.test(run, test, passed, millis);
+					} else if (tag == LABEL) {
+						int name = (int) getVarint(window);
+						if (visitor != null) visitor.label(run, test, name);
+					} else if (tag == COMMAND) {
+						int name = (int) getVarint(window);
+						int status = (int) getVarint(window);
+						int millis = (int) getVarint(window);
+						if (visitor != null) visitor.command(run, test, name, status, millis);
+					} else {
+						throw corrupt(base + start);
+					}
+				} catch (BufferUnderflowException e) {
+					// windows always hold a whole record short of the end, so this is a torn write there
+					return base + start;
+				}
+			}
+			return size;
+		} finally {
+			if (input != this.output) {
+				input.close();
+			}
+		}
+	}
+
+	IOException corrupt(long offset) {
+		return new IOException(this.file + " has a bad record at byte " + offset
+			+ "; move the history aside or truncate it there to start again");
+	}
+
+	static long getVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+}
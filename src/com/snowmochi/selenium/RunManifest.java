@@ -0,0 +1,200 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Remembers the last outcome of each test file together with the content
+ * hash, browser and base URL it ran with, so that later runs can skip
+ * tests that passed and have not changed since.  The duration is kept for
+ * --shard under the test's label, and the time of recording lets shard
+ * manifests be merged.
+ * Stored as a tab-separated text file with one line per test.
+ */
+class RunManifest {
+	static class Entry {
+		String path;
+		boolean passed;
+		String hash;
+		String browser;
+		String baseUrl;
+		long time = -1;
+		long recorded;
+		String label;
+	}
+
+	final File file;
+	final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	// files already recorded by this run, such as earlier rows of a data-driven test
+	final Set<String> recorded = new HashSet<String>();
+
+	RunManifest(File file) {
+		this.file = file;
+	}
+
+	static String key(File testFile) {
+		return testFile.getAbsolutePath();
+	}
+
+	public synchronized void load() throws IOException {
+		this.entries.clear();
+		if (!this.file.exists()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String fields[] = line.split("\t", -1);
+				if (fields.length < 5 || line.startsWith("#")) {
+					continue;
+				}
+				Entry entry = new Entry();
+				entry.path = fields[0];
+				entry.passed = fields[1].equals("PASSED");
+				entry.hash = fields[2];
+				entry.browser = fields[3];
+				entry.baseUrl = fields[4].length() == 0 ? null : fields[4];
+				// manifests written before durations were recorded have five fields
+				if (fields.length >= 7) {
+					entry.time = Long.parseLong(fields[5]);
+					entry.recorded = Long.parseLong(fields[6]);
+				}
+				if (fields.length >= 8 && fields[7].length() > 0) {
+					entry.label = fields[7];
+				}
+				this.entries.put(entry.path, entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		File temp = new File(this.file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		try {
+			out.write("# path\tresult\tsha1\tbrowser\tbaseurl\ttime\trecorded\tlabel\n");
+			for (Entry entry : this.entries.values()) {
+				out.write(entry.path + "\t" + (entry.passed ? "PASSED" : "FAILED") + "\t" + entry.hash
+					+ "\t" + entry.browser + "\t" + (entry.baseUrl == null ? "" : entry.baseUrl)
+					+ "\t" + entry.time + "\t" + entry.recorded
+					+ "\t" + (entry.label == null ? "" : entry.label) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(this.file)) {
+			this.file.delete();
+			if (!temp.renameTo(this.file)) {
+				throw new IOException("could not replace " + this.file);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new run, after which a file recorded more than once (one
+	 * entry per data row) only counts as passed if every entry passed.
+	 */
+	public synchronized void startRun() {
+		this.recorded.clear();
+	}
+
+	public void record(Test test, String browser, String baseUrl) {
+		Entry entry = new Entry();
+		entry.path = key(test.file);
+		entry.passed = test.result;
+		try {
+			entry.hash = TestPlanCache.hash(test.file);
+		} catch (IOException e) {
+			// a missing file counts as changed next time
+			entry.hash = "";
+		}
+		entry.browser = browser;
+		entry.baseUrl = baseUrl;
+		entry.time = test.time;
+		entry.recorded = System.currentTimeMillis();
+		entry.label = Shard.durationKey(test);
+		synchronized (this) {
+			if (!this.recorded.add(entry.path)) {
+				entry.passed &= this.entries.get(entry.path).passed;
+			}
+			this.entries.put(entry.path, entry);
+		}
+	}
+
+	/**
+	 * Takes over the other manifest's entries that were recorded later than
+	 * this one's, as when combining the manifests written by each shard.
+	 */
+	public synchronized void merge(RunManifest other) {
+		synchronized (other) {
+			for (Entry entry : other.entries.values()) {
+				Entry current = this.entries.get(entry.path);
+				if (current == null || entry.recorded > current.recorded) {
+					this.entries.put(entry.path, entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the last recorded duration of each test, by the label
+	 * Shard.durationKey gives it.
+	 */
+	public synchronized Map<String, Long> durations() {
+		Map<String, Long> durations = new HashMap<String, Long>();
+		for (Entry entry : this.entries.values()) {
+			if (entry.time >= 0 && entry.label != null) {
+				durations.put(entry.label, Long.valueOf(entry.time));
+			}
+		}
+		return durations;
+	}
+
+	/**
+	 * Returns whether the test failed last time it ran, or has not run yet.
+	 */
+	public synchronized boolean hasFailed(File testFile) {
+		Entry entry = this.entries.get(key(testFile));
+		return entry == null || !entry.passed;
+	}
+
+	/**
+	 * Returns whether the test's file, browser or forced base URL differ from
+	 * its last run.  A base URL of null means the test's own is used, which
+	 * cannot have changed if the file has not.
+	 */
+	public boolean hasChanged(File testFile, String browser, String baseUrl) {
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(key(testFile));
+		}
+		if (entry == null || !entry.browser.equals(browser)) {
+			return true;
+		}
+		if (baseUrl != null && !baseUrl.equals(entry.baseUrl)) {
+			return true;
+		}
+		try {
+			return !TestPlanCache.hash(testFile).equals(entry.hash);
+		} catch (IOException e) {
+			return true;
+		}
+	}
+}
@@ -16,7 +16,9 @@ package com.snowmochi.selenium;
 
 import java.io.*;
 import java.lang.reflect.*;
+import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.*;
@@ -32,11 +34,32 @@ public class SeleniumHtmlClient {
     }
 
 	public static void main(String args[]) {
+		int status = run(args, null);
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Runs one command line and returns the exit status.  A daemon passes
+	 * itself in so that the run can use its warm plan cache and sessions.
+	 */
+	static int run(String args[], DriverDaemon daemon) {
+		SeleniumHtmlClient client = new SeleniumHtmlClient();
 		try {
-			SeleniumHtmlClient client = new SeleniumHtmlClient();
+			if (daemon != null) {
+				client.setPlanCache(daemon.planCache);
+				client.setSessionPool(daemon.sessionPool);
+			}
+			int daemonPort = -1;
 			String testFile = null;
 			String testSuite = null;
+			List<String> testDirs = new ArrayList<String>();
 			String resultsFilename = null;
+			String metricsFilename = null;
+			StubRemoteControl stub = null;
+			int repeat = 1;
+			long captureLimit = FailureCapture.DEFAULT_LIMIT;
 			for (int i = 0; i < args.length; i++) {
 				if (args[i].equals("--host")) {
 					i++;
@@ -52,6 +75,13 @@ public class SeleniumHtmlClient {
 					} else {
 						throw new BadUsageException("--port must be followed by a port number");
 					}
+				} else if (args[i].equals("--servers")) {
+					i++;
+					if (i < args.length) {
+						client.setServers(args[i]);
+					} else {
+						throw new BadUsageException("--servers must be followed by a list of servers");
+					}
 				} else if (args[i].equals("--browser")) {
 					i++;
 					if (i < args.length) {
@@ -75,6 +105,22 @@ public class SeleniumHtmlClient {
 						throw new BadUsageException("--outdir must be followed by a path");
 					}
 					*/
+				} else if (args[i].equals("--format")) {
+					i++;
+					if (i < args.length) {
+						client.setReportFormat(args[i]);
+					} else {
+						throw new BadUsageException("--format must be followed by html, junit or json");
+					}
+				} else if (args[i].equals("--metrics")) {
+					i++;
+					if (i < args.length) {
+						metricsFilename = args[i];
+					} else {
+						throw new BadUsageException("--metrics must be followed by a filename");
+					}
+				} else if (args[i].equals("--jmx")) {
+					client.getMetrics().register();
 				} else if (args[i].equals("--baseurl")) {
 					i++;
 					if (i < args.length) {
@@ -100,19 +146,175 @@ public class SeleniumHtmlClient {
 					} else {
 						throw new BadUsageException("--testsuite must be followed by a testsuite filepath");
 					}
+				} else if (args[i].equals("--testdir")) {
+					i++;
+					if (i < args.length) {
+						testDirs.add(args[i]);
+					} else {
+						throw new BadUsageException("--testdir must be followed by a directory or glob pattern");
+					}
+				} else if (args[i].equals("--parallel")) {
+					i++;
+					if (i < args.length) {
+						client.setParallel(Integer.parseInt(args[i]));
+					} else {
+						throw new BadUsageException("--parallel must be followed by a number of workers");
+					}
+				} else if (args[i].equals("--plan-cache")) {
+					i++;
+					if (i < args.length) {
+						client.setPlanCacheDir(new File(args[i]));
+					} else {
+						throw new BadUsageException("--plan-cache must be followed by a directory");
+					}
+				} else if (args[i].equals("--manifest")) {
+					i++;
+					if (i < args.length) {
+						client.setManifest(new File(args[i]));
+					} else {
+						throw new BadUsageException("--manifest must be followed by a filename");
+					}
+				} else if (args[i].equals("--shard")) {
+					i++;
+					if (i < args.length) {
+						client.setShard(Shard.parse(args[i]));
+					} else {
+						throw new BadUsageException("--shard must be followed by i/n");
+					}
+				} else if (args[i].equals("--history")) {
+					i++;
+					if (i < args.length) {
+						client.setHistory(RunHistory.open(new File(args[i])));
+					} else {
+						throw new BadUsageException("--history must be followed by a filename");
+					}
+				} else if (args[i].equals("--capture-failures")) {
+					i++;
+					if (i < args.length) {
+						client.setFailureCapture(new FailureCapture(new File(args[i])));
+					} else {
+						throw new BadUsageException("--capture-failures must be followed by a directory");
+					}
+				} else if (args[i].equals("--capture-limit")) {
+					i++;
+					if (i < args.length) {
+						captureLimit = Long.parseLong(args[i]) << 20;
+					} else {
+						throw new BadUsageException("--capture-limit must be followed by a size in MB");
+					}
+				} else if (args[i].equals("--retries")) {
+					i++;
+					if (i < args.length) {
+						client.setRetries(Integer.parseInt(args[i]));
+					} else {
+						throw new BadUsageException("--retries must be followed by a count");
+					}
+				} else if (args[i].equals("--retry-backoff")) {
+					i++;
+					if (i < args.length) {
+						client.setRetryBackoff(Long.parseLong(args[i]));
+					} else {
+						throw new BadUsageException("--retry-backoff must be followed by a time in ms");
+					}
+				} else if (args[i].equals("--only-failed")) {
+					client.setOnlyFailed(true);
+				} else if (args[i].equals("--changed-since-last")) {
+					client.setChangedSinceLast(true);
+				} else if (args[i].equals("--no-keep-alive")) {
+					client.setKeepAlive(false);
+				} else if (args[i].equals("--batch-accessors")) {
+					client.setBatchAccessors(true);
+				} else if (args[i].equals("--stream-above")) {
+					i++;
+					if (i < args.length) {
+						client.setStreamAbove(Long.parseLong(args[i]) * 1024);
+					} else {
+						throw new BadUsageException("--stream-above must be followed by a size in KB");
+					}
+				} else if (args[i].equals("--cache-accessors")) {
+					client.setCacheAccessors(true);
+				} else if (args[i].equals("--pause-until-idle")) {
+					client.setPauseUntilIdle(true);
+				} else if (args[i].equals("--reuse-sessions")) {
+					client.setReuseSessions(true);
+				} else if (args[i].equals("--repeat")) {
+					i++;
+					if (i < args.length) {
+						repeat = Integer.parseInt(args[i]);
+					} else {
+						throw new BadUsageException("--repeat must be followed by a count");
+					}
+				} else if (args[i].equals("--stub")) {
+					if (stub == null) stub = new StubRemoteControl();
+				} else if (args[i].equals("--stub-latency")) {
+					i++;
+					if (i < args.length) {
+						if (stub == null) stub = new StubRemoteControl();
+						stub.setLatency(args[i]);
+					} else {
+						throw new BadUsageException("--stub-latency must be followed by a latency spec");
+					}
+				} else if (args[i].equals("--stub-failure-rate")) {
+					i++;
+					if (i < args.length) {
+						if (stub == null) stub = new StubRemoteControl();
+						stub.setFailureRate(Double.parseDouble(args[i]));
+					} else {
+						throw new BadUsageException("--stub-failure-rate must be followed by a fraction");
+					}
+				} else if (args[i].equals("--stub-session-cost")) {
+					i++;
+					if (i < args.length) {
+						if (stub == null) stub = new StubRemoteControl();
+						stub.setSessionCost(Long.parseLong(args[i]));
+					} else {
+						throw new BadUsageException("--stub-session-cost must be followed by a time in ms");
+					}
+				} else if (args[i].equals("--daemon")) {
+					if (daemonPort < 0) daemonPort = DriverDaemon.DEFAULT_PORT;
+				} else if (args[i].equals("--daemon-port")) {
+					i++;
+					if (i < args.length) {
+						daemonPort = Integer.parseInt(args[i]);
+					} else {
+						throw new BadUsageException("--daemon-port must be followed by a port number");
+					}
 				} else if (args[i].equals("--verbose") || args[i].equals("-v")) {
 					client.setVerbose(true);
 				} else if (args[i].equals("--help") || args[i].equals("-h")) {
     				printUsage();
-					System.exit(0);
+					return 0;
 				} else {
 					throw new BadUsageException("Unknown parameter " + args[i]);
 				}
 			}
-			if (testFile == null && testSuite == null) {
-				throw new BadUsageException("No test or testsuite file specified");
-			} else if (testFile != null && testSuite != null) {
-				throw new BadUsageException("A test and testsuite file cannot both be specified");
+			int sources = (testFile != null ? 1 : 0) + (testSuite != null ? 1 : 0) + (testDirs.isEmpty() ? 0 : 1);
+			if (daemonPort >= 0) {
+				if (daemon != null) {
+					throw new BadUsageException("--daemon cannot be sent to a daemon");
+				} else if (sources > 0) {
+					throw new BadUsageException("A daemon takes its tests from DaemonClient, not the command line");
+				}
+				new DriverDaemon(daemonPort).serve();
+				return 0;
+			}
+			if (sources == 0) {
+				throw new BadUsageException("No test, testsuite or testdir specified");
+			} else if (sources > 1) {
+				throw new BadUsageException("Only one of --test, --testsuite and --testdir can be specified");
+			}
+			if (client.failureCapture != null) {
+				client.failureCapture.setLimit(captureLimit);
+				client.failureCapture.setVerbose(client.verbose);
+			}
+			if (client.shard != null && testFile != null) {
+				throw new BadUsageException("--shard needs a --testsuite or --testdir to split");
+			}
+			if (stub != null && HtmlCommandProcessor.isHtmlUnit(client.browser)) {
+				throw new BadUsageException("--stub stands in for an RC server, which --browser *htmlunit does not use");
+			}
+			if ((client.onlyFailed || client.changedSinceLast) && client.manifest == null) {
+				throw new BadUsageException("--only-failed and --changed-since-last require --manifest");
 			}
 			Writer resultsWriter = null;
 			if (resultsFilename != null) {
@@ -121,38 +323,124 @@ public class SeleniumHtmlClient {
 				resultsWriter = new OutputStreamWriter(System.out);
 			}
 			client.setResultsWriter(resultsWriter);
-			if (testFile != null) {
-				client.runTest(testFile);
-			} else {
-				client.runSuite(testSuite);
+			if (stub != null) {
+				stub.start();
+				client.setHost("localhost");
+				client.setPort(stub.getPort());
+			}
+			long started = System.nanoTime();
+			for (int run = 0; run < repeat; run++) {
+				if (testFile != null) {
+					client.runTest(testFile);
+				} else if (testSuite != null) {
+					client.runSuite(testSuite);
+				} else {
+					client.runTestDirectories(testDirs);
+				}
 			}
+			if (client.failureCapture != null) {
+				client.failureCapture.close();
+			}
+			long elapsed = System.nanoTime() - started;
 			if (resultsWriter != null) resultsWriter.close();
+			if (stub != null) {
+				stub.stop();
+				printHarnessSummary(client.getMetrics(), stub, elapsed);
+			}
+			if (metricsFilename != null) {
+				client.getMetrics().write(new File(metricsFilename));
+			}
 		} catch (BadUsageException e) {
 		    System.err.println("Error: " + e.getMessage());
 		    System.err.println();
 			printUsage();
-		    System.exit(1);
+		    return 1;
 		} catch (Exception e) {
 			e.printStackTrace();
-		    System.exit(1);
+		    return 1;
+		} finally {
+			if (client.history != null) {
+				// releases its lock even when the run fails, which matters to a daemon
+				try {
+					client.history.close();
+				} catch (IOException e) {
+					System.err.println("Warning: Could not close history: " + e.getMessage());
+				}
+			}
 		}
+		return 0;
 	}
 	
+	/**
+	 * Reports throughput against the stub server on stderr.  Driver overhead
+	 * is the round-trip time seen by the driver minus the time the stub
+	 * spent answering, per request.
+	 */
+	static void printHarnessSummary(Metrics metrics, StubRemoteControl stub, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long requests = stub.getRequestCount();
+		double overheadMicros = requests == 0 ? 0
+			: (metrics.getRoundTripMicros() - stub.getServiceNanos() / 1000.0) / requests;
+		System.err.println("Harness: " + metrics.getTestsCompleted() + " tests, "
+			+ metrics.getCommandsExecuted() + " commands, " + requests + " RC requests in "
+			+ String.format(Locale.US, "%.2f", seconds) + " s");
+		System.err.println(String.format(Locale.US, "  tests/sec:    %.2f", metrics.getTestsCompleted() / seconds));
+		System.err.println(String.format(Locale.US, "  commands/sec: %.2f", metrics.getCommandsExecuted() / seconds));
+		System.err.println(String.format(Locale.US, "  driver overhead per RC request: %.3f ms", overheadMicros / 1000.0));
+		if (metrics.getAccessorCacheHits() + metrics.getAccessorCacheMisses() > 0) {
+			System.err.println("  accessor cache: " + metrics.getAccessorCacheHits() + " hits, "
+				+ metrics.getAccessorCacheMisses() + " misses");
+		}
+	}
+
 	static void printUsage() {
 	    System.out.println("Selenium HTML Client");
 	    System.out.println("Usage:");
 	    System.out.println("\t--host hostname\tSpecify Selenium server (default: localhost)");
 	    System.out.println("\t--port portnumber\tSpecify Selenium server port (default: 4444)");
-	    System.out.println("\t--browser browserspec\tSpecify Selenium browser (default: *opera)");
+	    System.out.println("\t--servers host:port*slots,...\tSpread suite tests over several Selenium servers");
+	    System.out.println("\t--browser browserspec\tSpecify Selenium browser (default: *opera); *htmlunit runs HtmlUnit in-process, without an RC server");
 	    System.out.println("\t--out outputfilename\tSpecify a file for output");
+	    System.out.println("\t--format html|junit|json\tSpecify the output format (default: html)");
+	    System.out.println("\t--metrics metricsfile\tWrite command latency metrics as CSV (or JSON for *.json)");
+	    System.out.println("\t--jmx\tPublish live metrics as the JMX MBean com.snowmochi.selenium:type=Metrics");
 	    //System.out.println("\t--outdir outputpath");
 	    System.out.println("\t--baseurl testurlbase\tSpecify the base URL for any relative URLs");
 	    System.out.println("\t--test testfile\tExecute a single test file");
 	    System.out.println("\t--testsuite testsuitefile\tExecute a test suite file");
+	    System.out.println("\t--testdir dir|glob\tExecute every test file under a directory, or matching a pattern such as 'tests/**/*.html' (repeatable)");
+	    System.out.println("\t--parallel workers\tRun suite tests on this many concurrent sessions (default: 1)");
+	    System.out.println("\t--plan-cache cachedir\tKeep compiled test plans in this directory to skip reparsing unchanged tests");
+	    System.out.println("\t--manifest manifestfile\tRecord each test's outcome and content hash; failed and changed tests run first");
+	    System.out.println("\t--shard i/n\tRun the i-th of n slices of the suite, balanced by the durations in the manifest or history (merge reports with ReportMerger)");
+	    System.out.println("\t--history historyfile\tAppend test and command outcomes and timings to a binary history (query with HistoryReport)");
+	    System.out.println("\t--capture-failures dir\tSave a screenshot and the page source for each failed command");
+	    System.out.println("\t--capture-limit MB\tStop capturing once the saved files reach this size (default: 100)");
+	    System.out.println("\t--retries count\tRetry commands after transport errors, and replace lost sessions, up to this many times (default: 0)");
+	    System.out.println("\t--retry-backoff ms\tPause before the first retry, doubled for each further one (default: 500)");
+	    System.out.println("\t--only-failed\tRun only the suite tests that failed (or never ran) last time");
+	    System.out.println("\t--changed-since-last\tSkip suite tests that passed last time and have not changed since");
+	    System.out.println("\t--no-keep-alive\tOpen a new connection to the server for every command");
+	    System.out.println("\t--batch-accessors\tEvaluate runs of read-only verify/assert commands in one round-trip");
+	    System.out.println("\t--stream-above KB\tRead test files larger than this row by row as they run, instead of loading them whole (no batching)");
+	    System.out.println("\t--cache-accessors\tAnswer repeated read-only accessors from a cache until the next action command");
+	    System.out.println("\t--pause-until-idle\tEnd pause commands early once the page has finished loading and is idle");
+	    System.out.println("\t--reuse-sessions\tReuse browser sessions between suite tests instead of one per test");
+	    System.out.println("\t--repeat count\tRun the test or suite this many times");
+	    System.out.println("\t--stub\tRun against an in-process stub RC server and report throughput");
+	    System.out.println("\t--stub-latency ms[,cmd=ms...]\tDelay for stub responses, optionally per command");
+	    System.out.println("\t--stub-failure-rate fraction\tFraction of stub commands that fail");
+	    System.out.println("\t--stub-session-cost ms\tDelay for starting a stub session");
+	    System.out.println("\t--daemon\tStay running with warm parsers and browser sessions, taking jobs from DaemonClient");
+	    System.out.println("\t--daemon-port port\tLocal port for --daemon (default: " + DriverDaemon.DEFAULT_PORT + ")");
 	    System.out.println("\t--verbose, -v\tSet verbose mode on");
 	    System.out.println("\t--help, -h\tDisplay this message");
 	}
 
+	// waitFor commands that are RC commands in their own right rather than waitFor + accessor
+	static final Set<String> SERVER_WAITS = new HashSet<String>(Arrays.asList(new String[] {
+		"waitForPageToLoad", "waitForCondition", "waitForPopUp", "waitForFrameToLoad" }));
+
 	String host = "localhost";
 	int port = 4444;
 	String browser = "*opera";
@@ -160,8 +448,29 @@ public class SeleniumHtmlClient {
 	File resultsDir;
 	Writer resultsWriter;
 	boolean verbose;
+	String reportFormat = "html";
+	ResultReporter reporter;
+	Metrics metrics = new Metrics();
+	int parallel = 1;
+	TestPlanCache planCache = new TestPlanCache();
+	boolean reuseSessions;
+	boolean batchAccessors;
+	long streamAbove = -1;
+	boolean keepAlive = true;
+	boolean pauseUntilIdle;
+	boolean cacheAccessors;
+	SessionPool sessionPool;
+	ServerFarm serverFarm;
+	RunManifest manifest;
+	RunHistory history;
+	FailureCapture failureCapture;
+	RetryPolicy retryPolicy = new RetryPolicy();
+	boolean onlyFailed;
+	boolean changedSinceLast;
+	Shard shard;
 	Document document;
 	CommandProcessor commandProcessor;
+	Map<String, String> variables = new HashMap<String, String>();
 
 	public SeleniumHtmlClient() {
 	}
@@ -186,6 +495,25 @@ public class SeleniumHtmlClient {
 		this.resultsWriter = out;
 	}
 
+	public void setReportFormat(String reportFormat) {
+		if (!reportFormat.equals("html") && !reportFormat.equals("junit") && !reportFormat.equals("json")) {
+			throw new BadUsageException("Unknown report format " + reportFormat);
+		}
+		this.reportFormat = reportFormat;
+	}
+
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	void setReporter(ResultReporter reporter) {
+		this.reporter = reporter;
+	}
+
 	public void setBaseUrl(String baseUrl) {
 		this.baseUrl = baseUrl;
 	}
@@ -194,25 +522,144 @@ public class SeleniumHtmlClient {
 		this.verbose = verbose;
 	}
 
-	class TestSuite {
+	public void setParallel(int parallel) {
+		if (parallel < 1) {
+			throw new BadUsageException("--parallel must be at least 1");
+		}
+		this.parallel = parallel;
+	}
+
+	public void setReuseSessions(boolean reuseSessions) {
+		this.reuseSessions = reuseSessions;
+	}
+
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public void setPauseUntilIdle(boolean pauseUntilIdle) {
+		this.pauseUntilIdle = pauseUntilIdle;
+	}
+
+	public void setCacheAccessors(boolean cacheAccessors) {
+		this.cacheAccessors = cacheAccessors;
+	}
+
+	public void setBatchAccessors(boolean batchAccessors) {
+		this.batchAccessors = batchAccessors;
+	}
+
+	/**
+	 * Sets the file size in bytes above which tests are streamed; negative
+	 * (the default) means never.
+	 */
+	public void setStreamAbove(long streamAbove) {
+		this.streamAbove = streamAbove;
+	}
+
+	public void setPlanCacheDir(File planCacheDir) {
+		this.planCache.setCacheDir(planCacheDir);
+	}
+
+	void setPlanCache(TestPlanCache planCache) {
+		this.planCache = planCache;
+	}
+
+	public void setServers(String spec) {
+		try {
+			this.serverFarm = ServerFarm.parse(spec);
+		} catch (IllegalArgumentException e) {
+			throw new BadUsageException("Bad --servers list: " + e.getMessage());
+		}
+		this.serverFarm.setFactory(newSessionFactory());
+	}
+
+	static SessionPool.Factory newSessionFactory() {
+		return new SessionPool.Factory() {
+			public CommandProcessor newSession(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+				return new HtmlCommandProcessor(host, port, browser, baseUrl, keepAlive);
+			}
+		};
+	}
+
+	public void setManifest(File manifestFile) throws IOException {
+		this.manifest = new RunManifest(manifestFile);
+		this.manifest.load();
+	}
+
+	public void setRetries(int retries) {
+		this.retryPolicy.setRetries(retries);
+	}
+
+	public void setRetryBackoff(long backoff) {
+		this.retryPolicy.setBackoff(backoff);
+	}
+
+	void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public void setFailureCapture(FailureCapture failureCapture) {
+		this.failureCapture = failureCapture;
+	}
+
+	public void setHistory(RunHistory history) {
+		this.history = history;
+	}
+
+	public void setOnlyFailed(boolean onlyFailed) {
+		this.onlyFailed = onlyFailed;
+	}
+
+	public void setChangedSinceLast(boolean changedSinceLast) {
+		this.changedSinceLast = changedSinceLast;
+	}
+
+	public void setShard(Shard shard) {
+		this.shard = shard;
+	}
+
+	void setServerFarm(ServerFarm serverFarm) {
+		this.serverFarm = serverFarm;
+	}
+
+	void setSessionPool(SessionPool sessionPool) {
+		this.sessionPool = sessionPool;
+	}
+
+	static class TestSuite {
 		public File file;
 		public String name;
 		public Test tests[];
 		public boolean result;
+		public String shard;
+		public String shardPlan;
 	}
-	class Test {
+	static class Test {
 		public String label;
 		public File file;
 		public String name;
 		public Command commands[];
 		public boolean result;
+		public String error;
+		public long time;
+		public int retries;
+		public int recoveries;
+		public Map<String, String> parameters;
 	}
-	class Command {
+	static class Command {
 		public String cmd;
 		public String args[];
 		public String result;
 		public boolean error;
 		public boolean failure;
+		public long time;
+		public String screenshot;
+		public String source;
+		public int retries;
+		public boolean recovered;
+		public boolean sessionLost;
+		public String cache;
 	}
 
 	public boolean runSuite(String filename) throws Exception {
@@ -223,125 +670,309 @@ public class SeleniumHtmlClient {
 		}
 		TestSuite suite = new TestSuite();
 		suite.file = new File(filename);
-		File suiteDirectory = suite.file.getParentFile();
-		this.document = parseDocument(filename);
-		Element table = (Element) this.document.getElementsByTagName("table").item(0);
-		NodeList tableRows = table.getElementsByTagName("tr");
-		Element tableNameRow = (Element) tableRows.item(0);
-		suite.name = tableNameRow.getTextContent();
+		TestDiscovery discovery = new TestDiscovery(this);
+		suite.name = discovery.addSuite(suite.file);
+		return runSuite(suite, discovery);
+	}
+
+	/**
+	 * Runs the tests found under the given directories or glob patterns as
+	 * one suite named after them.
+	 */
+	public boolean runTestDirectories(List<String> specs) throws Exception {
+		if (this.verbose) {
+			System.out.println("Running tests in " + specs + 
+				" against " + this.host + ":" + this.port +
+				" with " + this.browser);
+		}
+		TestSuite suite = new TestSuite();
+		suite.file = new File(specs.get(0));
+		StringBuilder name = new StringBuilder();
+		TestDiscovery discovery = new TestDiscovery(this);
+		for (String spec : specs) {
+			if (name.length() > 0) name.append(", ");
+			name.append(spec);
+			discovery.addDirectory(spec);
+		}
+		suite.name = name.toString();
+		return runSuite(suite, discovery);
+	}
+
+	/**
+	 * Runs tests as they are found.  Tests are only reported once taken from
+	 * the iterator, so a lazily walked tree starts running straight away.
+	 */
+	boolean runSuite(TestSuite suite, Iterator<Test> found) throws Exception {
+		if (this.manifest != null || this.shard != null) {
+			// sharding and putting failed and changed tests first need the whole list; finding them only lists files
+			List<Test> all = new ArrayList<Test>();
+			while (found.hasNext()) {
+				all.add(found.next());
+			}
+			if (this.shard != null) {
+				all = selectShard(suite, all);
+			}
+			if (this.manifest != null) {
+				all = Arrays.asList(selectTests(all.toArray(new Test[all.size()])));
+			}
+			found = all.iterator();
+		}
 		suite.result = true;
-		suite.tests = new Test[tableRows.getLength() - 1];
-		for (int i = 1; i < tableRows.getLength(); i++) {
-			Element tableRow = (Element) tableRows.item(i);
-			Element cell = (Element) tableRow.getElementsByTagName("td").item(0);
-			Element link = (Element) cell.getElementsByTagName("a").item(0);
-			Test test = new Test();
-			test.label = link.getTextContent();
-			test.file = new File(suiteDirectory, link.getAttribute("href"));
-
-			SeleniumHtmlClient subclient = new SeleniumHtmlClient();
-			subclient.setHost(this.host);
-			subclient.setPort(this.port);
-			subclient.setBrowser(this.browser);
-			//subclient.setResultsWriter(this.resultsWriter);
-			subclient.setBaseUrl(this.baseUrl);
-			subclient.setVerbose(this.verbose);
-			subclient.runTest(test);
-			suite.result &= test.result;
-			suite.tests[i - 1] = test;
-		}
-		if (this.resultsWriter != null) {
-			this.resultsWriter.write("<html><head>");
-			this.resultsWriter.write("<title>" + suite.name + "</title>");
-			this.resultsWriter.write("<style>");
-			this.resultsWriter.write(".ran { background-color: #eeffee; }");
-			this.resultsWriter.write(".passed { background-color: #ccffcc; }");
-			this.resultsWriter.write(".failed { background-color: #ffcccc; }");
-			this.resultsWriter.write(".error { background-color: #ffeeee; }");
-			this.resultsWriter.write("</style>");
-			this.resultsWriter.write("</head><body>");
-			this.resultsWriter.write("<div>\n");
-			this.resultsWriter.write("<h1>Selenium Test Suite Results</h1>\n");
-			this.resultsWriter.write("<h4>date:</h4> " + new Date() + "\n");
-			this.resultsWriter.write("<h4>browser:</h4> " + this.browser + "\n");
-			this.resultsWriter.write("<h4>result:</h4> " + (suite.result ? "PASSED" : "FAILED") + "\n");
-			this.resultsWriter.write("</div>\n");
-			this.resultsWriter.write("<div>\n");
-			this.resultsWriter.write("<h2>" + suite.file.getName() + "</h2>\n");
-			this.resultsWriter.write("<table border=\"1\">\n");
-			this.resultsWriter.write("<tr class=\"" + (suite.result ? "passed" : "failed") + "\"><td colspan=\"2\">" + suite.name + "</td></tr>\n");
-			for (Test test : suite.tests) {
-				this.resultsWriter.write("<tr class=\"" + (test.result ? "passed" : "failed") + "\"><td>");
-				this.resultsWriter.write("<a href=\"#" + test.label + "\">" + test.label + "</td><td>" + test.result + "\n");
-				this.resultsWriter.write("</td></tr>\n");
-			}
-			this.resultsWriter.write("</table>\n");
-			this.resultsWriter.write("</div>\n");
-			for (Test test : suite.tests) {
-				this.resultsWriter.write("<div>\n");
-				this.resultsWriter.write("<h3><a name=\"" + test.label + "\">" + test.file.getName() + "</a></h3>\n");
-				this.resultsWriter.write("<table border=\"1\">\n");
-				this.resultsWriter.write("<tr class=\"" + (test.result ? "passed" : "failed") + "\"><td colspan=\"3\">" + test.name + "</td></tr>\n");
-				for (Command command : test.commands) {
-					boolean result = command.result.startsWith("OK");
-					this.resultsWriter.write("<tr class=\"" + (result ? "passed" : "failed") + "\"><td>");
-					this.resultsWriter.write(command.cmd);
-					this.resultsWriter.write("</td><td>");
-					if (command.args != null) {
-						this.resultsWriter.write(Arrays.asList(command.args).toString());
-					}
-					this.resultsWriter.write("</td><td>");
-					this.resultsWriter.write(command.result);
-					this.resultsWriter.write("</td></tr>\n");
-					if (command.failure) break;
+		if (this.manifest != null) {
+			this.manifest.startRun();
+		}
+		if (this.history != null) {
+			this.history.startRun(suite.file.getAbsolutePath());
+		}
+		ResultReporter formatReporter = createReporter();
+		OrderedReporter orderedReporter = null;
+		if (formatReporter != null) {
+			orderedReporter = new OrderedReporter(formatReporter);
+			orderedReporter.startSuite(suite);
+		}
+		this.reporter = orderedReporter;
+		List<Test> admitted = new ArrayList<Test>();
+		Iterator<Test> tests = admitting(found, admitted, orderedReporter);
+		SessionPool ownPool = null;
+		if (this.reuseSessions && this.sessionPool == null) {
+			ownPool = new SessionPool(newSessionFactory());
+			ownPool.setVerbose(this.verbose);
+			this.sessionPool = ownPool;
+		}
+		// a pool handed in from outside (by a daemon) outlives the suite
+		SessionPool pool = this.sessionPool;
+		if (this.serverFarm != null) {
+			this.serverFarm.setSessionPool(this.sessionPool);
+			this.serverFarm.setVerbose(this.verbose);
+			// the farm's sessions are handed out by the farm alone
+			this.sessionPool = null;
+		}
+		try {
+			if (this.serverFarm != null) {
+				runTestsInParallel(tests, this.serverFarm.getCapacity());
+			} else if (this.parallel > 1) {
+				runTestsInParallel(tests, this.parallel);
+			} else {
+				while (tests.hasNext()) {
+					runSuiteTest(tests.next());
 				}
-				this.resultsWriter.write("</table>\n");
-				this.resultsWriter.write("</div>\n");
 			}
-			this.resultsWriter.write("</body></html>");
+		} finally {
+			if (ownPool != null) {
+				ownPool.closeAll();
+			}
+			if (this.serverFarm != null) {
+				this.serverFarm.setSessionPool(null);
+			}
+			this.sessionPool = ownPool != null ? null : pool;
+		}
+		suite.tests = admitted.toArray(new Test[admitted.size()]);
+		for (Test test : suite.tests) {
+			suite.result &= test.result;
+		}
+		if (this.manifest != null) {
+			this.manifest.save();
+		}
+		if (this.reporter != null) {
+			this.reporter.endSuite(suite);
 		}
 		return suite.result;
 	}
 
+	/**
+	 * Wraps the found tests so that each one is added to the suite and
+	 * announced to the reporter as it is handed out.
+	 */
+	static Iterator<Test> admitting(final Iterator<Test> found, final List<Test> admitted,
+			final OrderedReporter reporter) {
+		return new Iterator<Test>() {
+			public boolean hasNext() {
+				return found.hasNext();
+			}
+
+			public Test next() {
+				Test test = found.next();
+				admitted.add(test);
+				if (reporter != null) {
+					reporter.expect(test);
+				}
+				return test;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Keeps this machine's slice of the suite.  The split is made before
+	 * --only-failed and --changed-since-last drop anything, so that it does
+	 * not depend on which tests each machine last ran.
+	 */
+	List<Test> selectShard(TestSuite suite, List<Test> tests) throws IOException {
+		Map<String, Long> durations = this.manifest != null ? this.manifest.durations() : new HashMap<String, Long>();
+		if (durations.isEmpty() && this.history != null) {
+			durations = this.history.testDurations();
+		}
+		int slices[] = this.shard.assign(tests, durations);
+		suite.shard = this.shard.toString();
+		suite.shardPlan = Shard.fingerprint(tests, slices);
+		List<Test> selected = this.shard.select(tests, slices);
+		if (this.verbose) {
+			System.out.println("Shard " + this.shard + " runs " + selected.size() + " of " + tests.size()
+				+ " tests (" + durations.size() + " recorded durations)");
+		}
+		return selected;
+	}
+
+	/**
+	 * Drops the tests the current --only-failed or --changed-since-last mode
+	 * can skip, and moves tests that failed or changed since the last run to
+	 * the front so that their results come in first.
+	 */
+	Test[] selectTests(Test tests[]) {
+		List<Test> first = new ArrayList<Test>();
+		List<Test> rest = new ArrayList<Test>();
+		for (Test test : tests) {
+			boolean failed = this.manifest.hasFailed(test.file);
+			boolean changed = this.manifest.hasChanged(test.file, this.browser, this.baseUrl);
+			if (failed || changed) {
+				if (!this.onlyFailed || failed) {
+					first.add(test);
+				} else if (this.verbose) {
+					System.out.println("Skipping passed test " + test.file);
+				}
+			} else if (!this.onlyFailed && !this.changedSinceLast) {
+				rest.add(test);
+			} else if (this.verbose) {
+				System.out.println("Skipping unchanged passed test " + test.file);
+			}
+		}
+		first.addAll(rest);
+		return first.toArray(new Test[first.size()]);
+	}
+
+	boolean runSuiteTest(Test test) throws Exception {
+		SeleniumHtmlClient subclient = createSubclient();
+		boolean result = subclient.runTest(test);
+		if (this.manifest != null) {
+			this.manifest.record(test, this.browser, subclient.baseUrl);
+		}
+		if (this.history != null) {
+			this.history.record(test);
+		}
+		// the reporter has seen every command by now; don't hold them for the rest of the suite
+		test.commands = null;
+		return result;
+	}
+
+	SeleniumHtmlClient createSubclient() {
+		SeleniumHtmlClient subclient = new SeleniumHtmlClient();
+		subclient.setHost(this.host);
+		subclient.setPort(this.port);
+		subclient.setBrowser(this.browser);
+		//subclient.setResultsWriter(this.resultsWriter);
+		subclient.setBaseUrl(this.baseUrl);
+		subclient.setVerbose(this.verbose);
+		subclient.setSessionPool(this.sessionPool);
+		subclient.setServerFarm(this.serverFarm);
+		subclient.setBatchAccessors(this.batchAccessors);
+		subclient.setCacheAccessors(this.cacheAccessors);
+		subclient.setPauseUntilIdle(this.pauseUntilIdle);
+		subclient.setStreamAbove(this.streamAbove);
+		subclient.setKeepAlive(this.keepAlive);
+		subclient.setPlanCache(this.planCache);
+		subclient.setReporter(this.reporter);
+		subclient.setMetrics(this.metrics);
+		subclient.setFailureCapture(this.failureCapture);
+		subclient.setRetryPolicy(this.retryPolicy);
+		return subclient;
+	}
+
+	/**
+	 * Runs the tests on a fixed pool of workers, each test getting its own
+	 * subclient (and so its own browser session).  Results are written into
+	 * the Test objects themselves, so suite order is preserved.  Tests are
+	 * taken from the iterator only as workers free up.
+	 */
+	void runTestsInParallel(Iterator<Test> tests, int workers) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		final Semaphore slots = new Semaphore(workers * 2);
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			while (true) {
+				slots.acquire();
+				if (!tests.hasNext()) {
+					break;
+				}
+				final Test test = tests.next();
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						try {
+							return runSuiteTest(test);
+						} finally {
+							slots.release();
+						}
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	public boolean runTest(String filename) throws Exception {
 		Test test = new Test();
 		test.file = new File(filename);
-		runTest(test);
-		
-		// Print the DOM node
-		if (this.resultsWriter != null) {
-			this.resultsWriter.write("<html><head>");
-			this.resultsWriter.write("<title>" + test.name + "</title>");
-			this.resultsWriter.write("<style>");
-			this.resultsWriter.write(".ran { background-color: #eeffee; }");
-			this.resultsWriter.write(".passed { background-color: #ccffcc; }");
-			this.resultsWriter.write(".failed { background-color: #ffcccc; }");
-			this.resultsWriter.write(".error { background-color: #ffeeee; }");
-			this.resultsWriter.write("</style>");
-			this.resultsWriter.write("</head><body>");
-			this.resultsWriter.write("<div>\n");
-			this.resultsWriter.write("<h3><a name=\"" + test.label + "\">" + test.file.getName() + "</a></h3>\n");
-			this.resultsWriter.write("<table border=\"1\">\n");
-			this.resultsWriter.write("<tr class=\"" + (test.result ? "passed" : "failed") + "\"><td colspan=\"3\">" + test.name + "</td></tr>\n");
-			for (Command command : test.commands) {
-				boolean result = command.result.startsWith("OK");
-				this.resultsWriter.write("<tr class=\"" + (result ? "passed" : "failed") + "\"><td>");
-				this.resultsWriter.write(command.cmd);
-				this.resultsWriter.write("</td><td>");
-				if (command.args != null) {
-					this.resultsWriter.write(Arrays.asList(command.args).toString());
-				}
-				this.resultsWriter.write("</td><td>");
-				this.resultsWriter.write(command.result);
-				this.resultsWriter.write("</td></tr>\n");
-				if (command.failure) break;
-			}
-			this.resultsWriter.write("</table>\n");
-			this.resultsWriter.write("</div>\n");
-			this.resultsWriter.write("</body></html>");
-			//outputDocument(this.resultsWriter);
+		if (TestDiscovery.dataFile(test.file, TestDiscovery.peek(test.file)) != null) {
+			// one test per data row, run and reported as a suite
+			TestSuite suite = new TestSuite();
+			suite.file = test.file;
+			suite.name = test.file.getName();
+			TestDiscovery discovery = new TestDiscovery(this);
+			discovery.addTest(test.file);
+			return runSuite(suite, discovery);
+		}
+		this.reporter = createReporter();
+		if (this.history != null) {
+			this.history.startRun(filename);
+		}
+		boolean result = runTest(test);
+		if (this.history != null) {
+			this.history.record(test);
+		}
+		if (this.manifest != null) {
+			this.manifest.record(test, this.browser, this.baseUrl);
+			this.manifest.save();
+		}
+		return result;
+	}
+
+	ResultReporter createReporter() {
+		if (this.resultsWriter == null) {
+			return null;
+		} else if (this.reportFormat.equals("junit")) {
+			return new JUnitXmlReporter(this.resultsWriter);
+		} else if (this.reportFormat.equals("json")) {
+			JsonReporter reporter = new JsonReporter(this.resultsWriter);
+			reporter.setBrowser(this.browser);
+			return reporter;
+		} else {
+			HtmlReporter reporter = new HtmlReporter(this.resultsWriter, this.browser);
+			reporter.setMetrics(this.metrics);
+			return reporter;
 		}
-		return test.result;
 	}
 
 	public boolean runTest(Test test) throws Exception {
@@ -351,112 +982,445 @@ public class SeleniumHtmlClient {
 				" against " + this.host + ":" + this.port +
 				" with " + this.browser);
 		}
-		this.document = parseDocument(filename);
+		TestPlan plan = null;
+		TestRowReader rows = null;
+		String planBaseUrl;
+		if (this.streamAbove >= 0 && test.file.length() > this.streamAbove) {
+			rows = new TestRowReader(test.file);
+			test.name = rows.getName();
+			planBaseUrl = rows.getBaseUrl();
+		} else {
+			plan = loadPlan(test.file);
+			test.name = plan.name;
+			planBaseUrl = plan.baseUrl;
+		}
 
-		if (this.baseUrl == null) {
-			NodeList links = this.document.getElementsByTagName("link");
-			if (links.getLength() != 0) {
-				Element link = (Element) links.item(0);
-				setBaseUrl(link.getAttribute("href"));
-			}
+		if (this.baseUrl == null && planBaseUrl != null) {
+			setBaseUrl(planBaseUrl);
 		}
 		if (this.verbose) {
 			System.out.println("Base URL=" + this.baseUrl);
 		}
 
-		Node body = this.document.getElementsByTagName("body").item(0);
-		Element resultContainer = document.createElement("div");
-		resultContainer.setTextContent("Result: ");
-		Element resultElt = document.createElement("span");
-		resultElt.setAttribute("id", "result");
-		resultElt.setIdAttribute("id", true);
-		resultContainer.appendChild(resultElt);
-		body.insertBefore(resultContainer, body.getFirstChild());
-
-		Element executionLogContainer = document.createElement("div");
-		executionLogContainer.setTextContent("Execution Log:");
-		Element executionLog = document.createElement("div");
-		executionLog.setAttribute("id", "log");
-		executionLog.setIdAttribute("id", true);
-		executionLog.setAttribute("style", "white-space: pre;");
-		executionLogContainer.appendChild(executionLog);
-		body.appendChild(executionLogContainer);
-
-		NodeList tableRows = document.getElementsByTagName("tr");
-		Element theadRow = (Element) tableRows.item(0);
-		test.name = theadRow.getTextContent();
-		appendCellToRow(theadRow, "Result");
-
-		this.commandProcessor = new HtmlCommandProcessor(this.host, this.port, 
-			this.browser, this.baseUrl);
-		String resultState;
-		String resultLog;
+		this.variables.clear();
+		if (test.parameters != null) {
+			this.variables.putAll(test.parameters);
+			ArgumentTemplate name = test.name == null ? null : ArgumentTemplate.compile(test.name);
+			if (name != null) {
+				test.name = name.expand(test.parameters);
+			}
+			if (this.verbose) {
+				System.out.println("Parameters: " + test.parameters);
+			}
+		}
+
+		long started = System.currentTimeMillis();
+		if (this.reporter != null) {
+			this.reporter.startTest(test);
+		}
 		test.result = true;
 		try {
-			this.commandProcessor.start();
-			test.commands = new Command[tableRows.getLength() - 1];
-			for (int i = 1; i < tableRows.getLength(); i++) {
-				Element stepRow = (Element) tableRows.item(i);
-				Command command = executeStep(stepRow);
-				appendCellToRow(stepRow, command.result);
-				test.commands[i - 1] = command;
-				if (command.error) {
-					test.result = false;
-				}
-				if (command.failure) {
-					test.result = false;
-					break;
-				}
+			openSessionWithRetry(test);
+			if (rows != null) {
+				runSteps(test, rows);
+			} else {
+				runSteps(test, plan);
 			}
-			resultState = test.result ? "PASSED" : "FAILED";
-			resultLog = (test.result ? "Test Complete" : "Error");
-			this.commandProcessor.stop();
+			closeSession();
 		} catch (Exception e) {
+			abandonSession();
 			test.result = false;
-			resultState = "ERROR";
-			resultLog = "Failed to initialize session\n" + e;
+			test.error = "Failed to initialize session: " + e;
 			e.printStackTrace();
+		} finally {
+			if (rows != null) {
+				rows.close();
+			}
+		}
+		test.time = System.currentTimeMillis() - started;
+		this.metrics.recordTest(test.file, test.result, test.time);
+		if (this.reporter != null) {
+			this.reporter.endTest(test);
 		}
-		document.getElementById("result").setTextContent(resultState);
-		Element log = document.getElementById("log");
-		log.setTextContent(log.getTextContent() + resultLog + "\n");
 		return test.result;
 	}
 
+	void runSteps(Test test, TestPlan plan) throws Exception {
+		test.commands = new Command[plan.size()];
+		LinkedList<Command> prefetched = new LinkedList<Command>();
+		boolean batching = this.batchAccessors;
+		for (int i = 0; i < plan.size(); i++) {
+			if (batching && prefetched.isEmpty()) {
+				List<Command> batch = executeBatch(plan, i);
+				if (batch == null) {
+					// the server rejected the eval; don't keep paying for it
+					batching = false;
+				} else {
+					prefetched.addAll(batch);
+				}
+			}
+			Command command = prefetched.isEmpty()
+				? executeStep(plan.commands[i], plan.args[i], plan.templates[i])
+				: prefetched.removeFirst();
+			while (command.sessionLost && test.recoveries < this.retryPolicy.getRetries()) {
+				command = recoverSession(test, plan, i);
+			}
+			if (!recordStep(test, i, command)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Runs each row as soon as it is read.  Nothing is kept once a row has
+	 * been reported, so test.commands stays null, except that the rows since
+	 * the last open are held for replay when lost sessions are replaced.
+	 */
+	void runSteps(Test test, TestRowReader rows) throws Exception {
+		boolean recovering = this.retryPolicy.getRetries() > 0;
+		List<TestPlan.Row> replay = new ArrayList<TestPlan.Row>();
+		for (int i = 0; ; i++) {
+			TestPlan.Row row;
+			try {
+				row = rows.next();
+			} catch (IOException e) {
+				test.result = false;
+				test.error = "Stopped reading at step " + (i + 1) + ": " + e.getMessage();
+				break;
+			}
+			if (row == null) {
+				break;
+			}
+			if ("open".equals(row.command)) {
+				replay.clear();
+			}
+			Command command = executeStep(row.command, row.args, row.templates);
+			while (command.sessionLost && test.recoveries < this.retryPolicy.getRetries()) {
+				command = recoverSession(test, replay, row, i);
+			}
+			if (recovering) {
+				replay.add(row);
+			}
+			if (!recordStep(test, i, command)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reports a finished step and folds it into the test result.  Returns
+	 * false if the test has to stop here.
+	 */
+	boolean recordStep(Test test, int step, Command command) throws Exception {
+		if (test.commands != null) {
+			test.commands[step] = command;
+		}
+		if (command.error && this.failureCapture != null) {
+			this.failureCapture.capture(this.commandProcessor, test, step, command);
+		}
+		if (this.reporter != null) {
+			this.reporter.command(test, command);
+		}
+		if (command.error) {
+			test.result = false;
+		}
+		if (command.failure) {
+			test.result = false;
+			return false;
+		}
+		return true;
+	}
+
+	TestPlan loadPlan(File file) throws Exception {
+		String hash = TestPlanCache.hash(file);
+		TestPlan plan = this.planCache.get(file, hash);
+		if (plan == null) {
+			plan = TestPlan.compile(parseDocument(file.toString()));
+			this.planCache.put(file, hash, plan);
+		} else if (this.verbose) {
+			System.out.println("Using cached plan for " + file);
+		}
+		return plan;
+	}
+
+	void openSession() {
+		long started = System.nanoTime();
+		if (this.serverFarm != null) {
+			this.commandProcessor = this.serverFarm.acquire(this.browser, this.baseUrl, this.keepAlive);
+		} else if (this.sessionPool != null) {
+			this.commandProcessor = this.sessionPool.acquire(this.host, this.port, 
+				this.browser, this.baseUrl, this.keepAlive);
+		} else {
+			this.commandProcessor = new HtmlCommandProcessor(this.host, this.port, 
+				this.browser, this.baseUrl, this.keepAlive);
+			this.commandProcessor.start();
+		}
+		if (this.commandProcessor instanceof HtmlCommandProcessor) {
+			// pooled sessions may have been started by another client
+			((HtmlCommandProcessor) this.commandProcessor).pauseUntilIdle = this.pauseUntilIdle;
+			((HtmlCommandProcessor) this.commandProcessor).cache = this.cacheAccessors ? new AccessorCache() : null;
+			((HtmlCommandProcessor) this.commandProcessor).metrics = this.metrics;
+		}
+		this.metrics.record(Metrics.SESSION_START, System.nanoTime() - started);
+	}
+
+	void closeSession() {
+		long started = System.nanoTime();
+		if (this.commandProcessor instanceof HtmlCommandProcessor) {
+			((HtmlCommandProcessor) this.commandProcessor).expectError = false;
+			((HtmlCommandProcessor) this.commandProcessor).poller.setTimeout(WaitPoller.DEFAULT_TIMEOUT);
+		}
+		if (this.serverFarm != null) {
+			this.serverFarm.release(this.commandProcessor);
+		} else if (this.sessionPool != null) {
+			this.sessionPool.release(this.commandProcessor);
+		} else {
+			this.commandProcessor.stop();
+		}
+		this.metrics.record(Metrics.SESSION_STOP, System.nanoTime() - started);
+	}
+
+	void abandonSession() {
+		if (this.serverFarm != null && this.commandProcessor != null) {
+			this.serverFarm.evict(this.commandProcessor);
+		} else if (this.sessionPool != null && this.commandProcessor != null) {
+			this.sessionPool.evict(this.commandProcessor);
+		} else if (this.commandProcessor != null) {
+			SessionPool.stopQuietly(this.commandProcessor);
+		}
+	}
+
+	/**
+	 * Starts the test's session, trying again after a pause if the start
+	 * fails and retries are allowed.
+	 */
+	void openSessionWithRetry(Test test) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				openSession();
+				return;
+			} catch (Exception e) {
+				if (attempt >= this.retryPolicy.getRetries()) {
+					throw e;
+				}
+				if (this.verbose) {
+					System.out.println("Retrying session start after " + e.getMessage());
+				}
+				abandonSession();
+				test.retries++;
+				this.retryPolicy.pause(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Replaces a lost session with a new one, replays the test from its
+	 * last open up to the given step, and runs that step again.  Variables
+	 * stored during the replay overwrite the earlier values.
+	 */
+	Command recoverSession(Test test, TestPlan plan, int step) throws Exception {
+		int replayFrom = 0;
+		for (int i = step - 1; i >= 0; i--) {
+			if ("open".equals(plan.commands[i])) {
+				replayFrom = i;
+				break;
+			}
+		}
+		List<TestPlan.Row> replay = new ArrayList<TestPlan.Row>();
+		for (int i = replayFrom; i < step; i++) {
+			replay.add(plan.row(i));
+		}
+		return recoverSession(test, replay, plan.row(step), step);
+	}
+
+	/**
+	 * Replaces a lost session, replays the given rows and runs the row at
+	 * the given step again.
+	 */
+	Command recoverSession(Test test, List<TestPlan.Row> replay, TestPlan.Row row, int step) throws Exception {
+		test.recoveries++;
+		if (this.verbose) {
+			System.out.println("Session lost at step " + (step + 1) + "; starting a new one");
+		}
+		abandonSession();
+		this.retryPolicy.pause(test.recoveries - 1);
+		openSessionWithRetry(test);
+		for (int i = 0; i < replay.size(); i++) {
+			TestPlan.Row replayed = replay.get(i);
+			Command command = executeStep(replayed.command, replayed.args, replayed.templates);
+			if (command.failure) {
+				throw new SeleniumException("Replay after session loss failed at step "
+					+ (step - replay.size() + i + 1) + ": " + command.result);
+			}
+		}
+		Command command = executeStep(row.command, row.args, row.templates);
+		command.recovered = true;
+		return command;
+	}
+
+	/**
+	 * Runs the read-only verify/assert commands starting at the given step in
+	 * one round-trip.  Returns an empty list when there is no such run or
+	 * the session cannot batch it right now, and null when the server
+	 * rejected the batch and the steps should be run one at a time instead.
+	 */
+	List<Command> executeBatch(TestPlan plan, int start) {
+		List<AccessorBatch.Check> checks = new ArrayList<AccessorBatch.Check>();
+		for (int i = start; i < plan.size() && checks.size() < AccessorBatch.MAX_SIZE; i++) {
+			String args[] = plan.args[i] == null ? null : expandArgs(plan.args[i], plan.templates[i]);
+			AccessorBatch.Check check = AccessorBatch.parse(plan.commands[i], args);
+			if (check == null) {
+				break;
+			}
+			checks.add(check);
+		}
+		List<Command> commands = new ArrayList<Command>();
+		if (checks.size() < 2 || !(this.commandProcessor instanceof HtmlCommandProcessor)
+				|| !((HtmlCommandProcessor) this.commandProcessor).canBatch()) {
+			return commands;
+		}
+		long started = System.nanoTime();
+		String results[];
+		try {
+			results = ((HtmlCommandProcessor) this.commandProcessor).doAccessorBatch(checks);
+		} catch (SeleniumException e) {
+			// lost the connection rather than rejected; the steps run singly will find out
+			return commands;
+		} finally {
+			this.metrics.record(Metrics.BATCH, System.nanoTime() - started);
+		}
+		if (results == null) {
+			if (this.verbose) {
+				System.out.println("Batch of " + checks.size() + " accessors failed; running them singly");
+			}
+			return null;
+		}
+		for (int i = 0; i < results.length; i++) {
+			Command command = new Command();
+			command.cmd = plan.commands[start + i];
+			command.args = checks.get(i).args;
+			if (this.verbose) {
+				System.out.println(command.cmd + " " + Arrays.asList(command.args) + " (batched)");
+			}
+			command.result = results[i];
+			command.error = !results[i].startsWith("OK");
+			command.failure = command.error && !command.cmd.startsWith("verify");
+			commands.add(command);
+		}
+		return commands;
+	}
+
 	public Command executeStep(Element stepRow) throws Exception {
-		Command command = new Command();
 		NodeList stepFields = stepRow.getElementsByTagName("td");
 		String cmd = stepFields.item(0).getTextContent().trim();
-		command.cmd = cmd;
-		ArrayList<String> argList = new ArrayList<String>();
 		if (stepFields.getLength() == 1) {
+			return executeStep(cmd, null);
+		}
+		String args[] = new String[stepFields.getLength() - 1];
+		for (int i = 1; i < stepFields.getLength(); i++) {
+			args[i - 1] = TestPlan.normalize(stepFields.item(i).getTextContent());
+		}
+		return executeStep(cmd, args);
+	}
+
+	public Command executeStep(String cmd, String planArgs[]) throws Exception {
+		return executeStep(cmd, planArgs, planArgs == null ? null : ArgumentTemplate.compile(planArgs));
+	}
+
+	Command executeStep(String cmd, String planArgs[], ArgumentTemplate templates[]) throws Exception {
+		Command command = new Command();
+		command.cmd = cmd;
+		if (planArgs == null) {
 			// skip comments
 			command.result = "OK";
 			return command;
 		}
-		for (int i = 1; i < stepFields.getLength(); i++) {
-			String content = stepFields.item(i).getTextContent();
-content = content.replaceAll(" +", " ");
-content = content.replace('\u00A0', ' ');
-content = content.trim();
-			argList.add(content);
-		}
-		String args[] = argList.toArray(new String[0]);
+		// the command processor may rewrite arguments in place
+		String args[] = expandArgs(planArgs, templates);
 		command.args = args;
 		if (this.verbose) {
 			System.out.println(cmd + " " + Arrays.asList(args));
 		}
-		try {
-			command.result = this.commandProcessor.doCommand(cmd, args);
-			command.error = false;
-		} catch (Exception e) {
-			command.result = e.getMessage();
-			command.error = true;
+		long started = System.nanoTime();
+		for (int attempt = 0; ; attempt++) {
+			try {
+				if (cmd.startsWith("store")) {
+					command.result = store(cmd, args);
+				} else {
+					command.result = this.commandProcessor.doCommand(cmd, args);
+				}
+				command.error = false;
+				break;
+			} catch (Exception e) {
+				if (attempt < this.retryPolicy.getRetries() && RetryPolicy.isTransient(e)) {
+					if (this.verbose) {
+						System.out.println("Retrying " + cmd + " after " + e.getMessage());
+					}
+					command.retries++;
+					this.retryPolicy.pause(attempt);
+					args = expandArgs(planArgs, templates);
+					command.args = args;
+					continue;
+				}
+				command.result = e.getMessage();
+				command.error = true;
+				command.sessionLost = RetryPolicy.isSessionLost(e);
+				break;
+			}
+		}
+		long elapsed = System.nanoTime() - started;
+		command.time = elapsed / 1000000;
+		if (this.commandProcessor instanceof HtmlCommandProcessor) {
+			command.cache = ((HtmlCommandProcessor) this.commandProcessor).lastLookup;
 		}
+		this.metrics.record(cmd, elapsed);
 		command.failure = command.error && !cmd.startsWith("verify");
 		return command;
 	}
 
+	/**
+	 * Returns a copy of the arguments with stored variables substituted.
+	 */
+	String[] expandArgs(String planArgs[], ArgumentTemplate templates[]) {
+		String args[] = planArgs.clone();
+		if (templates != null) {
+			for (int i = 0; i < args.length; i++) {
+				if (templates[i] != null) {
+					args[i] = templates[i].expand(this.variables);
+				}
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * Runs a store command against the test's own variable table.  Literal
+	 * values are stored without asking the server; storeX looks up the value
+	 * with the getX or isX accessor.  The variable name is the last non-empty
+	 * argument.
+	 */
+	String store(String cmd, String args[]) {
+		String accessor = cmd.substring("store".length());
+		if (accessor.length() == 0) {
+			accessor = "Expression";
+		}
+		int valueArgs = args.length > 1 && args[args.length - 1].length() > 0 ? args.length - 1 : 0;
+		String name = args[valueArgs];
+		if (accessor.equals("Expression") && args[0].indexOf("javascript{") < 0) {
+			if (this.commandProcessor instanceof HtmlCommandProcessor) {
+				((HtmlCommandProcessor) this.commandProcessor).checkExpectedError();
+			}
+			this.variables.put(name, args[0]);
+			return "OK";
+		}
+		String accessorArgs[] = new String[valueArgs];
+		System.arraycopy(args, 0, accessorArgs, 0, valueArgs);
+		String result = this.commandProcessor.doCommand(
+			(AccessorBatch.isBooleanAccessor(accessor) ? "is" : "get") + accessor, accessorArgs);
+		this.variables.put(name, result.startsWith("OK,") ? result.substring("OK,".length()) : "");
+		return result;
+	}
+
 	Document parseDocument(String filename) throws Exception {
 		FileReader reader = new FileReader(filename);
 		String firstLine = new BufferedReader(reader).readLine();
@@ -491,12 +1455,6 @@ content = content.trim();
 		return document;
 	}
 
-	void appendCellToRow(Element tableRow, String content) {
-		Element newCell = document.createElement("td");
-		newCell.setTextContent(content);
-		tableRow.appendChild(newCell);
-	}
-
 	void outputDocument(Writer out) throws Exception {
 		// Set up the output transformer
 		TransformerFactory transfac = TransformerFactory.newInstance();
@@ -511,22 +1469,238 @@ content = content.trim();
 		trans.transform(source, result);
 	}
 	
-	class HtmlCommandProcessor extends HttpCommandProcessor {
+	static class HtmlCommandProcessor extends HttpCommandProcessor {
 		final static String INDEX_SPECIFIER = "index=";
 		final static String ID_SPECIFIER = "id=";
 		final static String LABEL_SPECIFIER = "label=";
 		final static String VALUE_SPECIFIER = "value=";
+		// runs in HtmlUnitCommandProcessor, which is only loaded for this browser
+		final static String HTMLUNIT_BROWSER = "*htmlunit";
+
+		// true once the page has reported itself idle on two polls in a row
+		final static String IDLE_SCRIPT = "(function(w) { var d = w.document;"
+			+ " if (d.readyState && d.readyState != 'complete') return false;"
+			+ " if (w.jQuery && w.jQuery.active) return false;"
+			+ " if (w.Ajax && w.Ajax.activeRequestCount) return false;"
+			+ " return true; })(this.browserbot.getCurrentWindow())";
 
 		boolean expectError;
+		boolean pauseUntilIdle;
+		// null unless --cache-accessors is on
+		AccessorCache cache;
+		// whether the last command was answered from the cache (HIT), looked up in it (MISS) or neither
+		String lastLookup;
+		// the metrics of the client holding the session, which changes when pooled sessions are reused
+		Metrics metrics;
+		KeepAliveTransport transport;
+		String sessionId;
+		WaitPoller poller = new WaitPoller();
+		// the in-process browser for *htmlunit; null when commands go to the RC server
+		HtmlUnitCommandProcessor local;
 
-		public HtmlCommandProcessor(String host, int port, String browser, String baseUrl) {
+		public HtmlCommandProcessor(String host, int port, String browser, String baseUrl, boolean keepAlive) {
 			super(host, port, browser, baseUrl);
+			if (isHtmlUnit(browser)) {
+				this.local = new HtmlUnitCommandProcessor(baseUrl);
+			} else if (keepAlive) {
+				this.transport = new KeepAliveTransport(host, port);
+			}
+		}
+
+		static boolean isHtmlUnit(String browser) {
+			return HTMLUNIT_BROWSER.equals(browser);
+		}
+
+		/**
+		 * Consumes a pending *ErrorOnNext or *FailureOnNext for a command
+		 * answered without the server, which therefore cannot fail.
+		 */
+		void checkExpectedError() {
+			if (expectError) {
+				expectError = false;
+				throw new SeleniumException("ERROR: Error expected");
+			}
+		}
+
+		/**
+		 * Sends a command as it is to the RC server, or to the in-process
+		 * browser.
+		 */
+		String send(String cmd, String args[]) {
+			if (this.local != null) {
+				return this.local.doCommand(cmd, args);
+			}
+			return super.doCommand(cmd, args);
+		}
+
+		public void start() {
+			if (this.local != null) {
+				this.local.start();
+			} else {
+				super.start();
+			}
+		}
+
+		protected void setSessionInProgress(String sessionId) {
+			super.setSessionInProgress(sessionId);
+			this.sessionId = sessionId;
+		}
+
+		public String executeCommandOnServlet(String command) {
+			if (this.transport == null) {
+				return super.executeCommandOnServlet(command);
+			}
+			try {
+				if (this.sessionId != null) {
+					command += "&sessionId=" + URLEncoder.encode(this.sessionId, "UTF-8");
+				}
+				return this.transport.execute(command);
+			} catch (KeepAliveTransport.HttpStatusException e) {
+				return throwAssertionFailureExceptionOrError(e.getMessage());
+			} catch (IOException e) {
+				throw new SeleniumException("Error talking to the Selenium server: " + e.getMessage(), e);
+			}
+		}
+
+		public void stop() {
+			if (this.local != null) {
+				this.local.stop();
+				return;
+			}
+			try {
+				super.stop();
+			} finally {
+				if (this.transport != null) {
+					this.transport.close();
+				}
+			}
+		}
+
+		/**
+		 * Returns whether accessor checks can go through doAccessorBatch
+		 * right now.
+		 */
+		boolean canBatch() {
+			// the batch script needs Selenium Core, and there is no round trip to save in-process
+			return !expectError && this.local == null;
+		}
+
+		/**
+		 * Evaluates a batch of accessor checks with one getEval, returning
+		 * null if the batch cannot be used.  Transient failures are thrown,
+		 * since they say nothing about whether the server can run the batch.
+		 */
+		public String[] doAccessorBatch(List<AccessorBatch.Check> checks) {
+			if (!canBatch()) {
+				return null;
+			}
+			try {
+				String result = super.doCommand("getEval", new String[] { AccessorBatch.script(checks), "" });
+				if (!result.startsWith("OK,")) {
+					return null;
+				}
+				return AccessorBatch.results(result.substring("OK,".length()), checks.size());
+			} catch (SeleniumException e) {
+				if (RetryPolicy.isTransient(e)) {
+					throw e;
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * Polls the accessor behind a waitFor/waitForNot command until it
+		 * matches, using the same single-getEval check as accessor batching
+		 * where possible and the server's verify command otherwise.  Only a
+		 * failed verify counts as not met yet; failures to reach the server or
+		 * the session are thrown at once.
+		 */
+		String waitFor(String cmd, final String args[]) {
+			final String verifyCmd = "verify" + cmd.substring("waitFor".length());
+			final AccessorBatch.Check check = AccessorBatch.parse(verifyCmd, args);
+			WaitPoller.Condition condition = new WaitPoller.Condition() {
+				boolean useEval = check != null;
+
+				public String check() {
+					if (this.useEval) {
+						String results[] = doAccessorBatch(Collections.singletonList(check));
+						if (results != null) {
+							return results[0].equals("OK") ? null : results[0];
+						}
+						this.useEval = false;
+					}
+					try {
+						send(verifyCmd, args.clone());
+						return null;
+					} catch (SeleniumException e) {
+						if (!isUnmet(e)) {
+							throw e;
+						}
+						return e.getMessage();
+					}
+				}
+			};
+			String unmet;
+			try {
+				unmet = this.poller.poll(condition);
+			} catch (InterruptedException e) {
+				throw new SeleniumException("ERROR: " + cmd + " interrupted");
+			}
+			if (unmet != null) {
+				throw new SeleniumException("ERROR: Timed out after " + this.poller.getTimeout() + "ms (" + unmet + ")");
+			}
+			return "OK";
+		}
+
+		/**
+		 * Returns whether a failed verify only means that its condition does
+		 * not hold, as opposed to the server or session not answering.
+		 */
+		static boolean isUnmet(SeleniumException e) {
+			String message = e.getMessage();
+			return message != null && (message.equals("false") || message.startsWith("ERROR"))
+				&& !RetryPolicy.isSessionLost(e);
+		}
+
+		/**
+		 * Waits until the page has finished loading and has no Ajax requests
+		 * outstanding that a known library reports, for at most the given
+		 * time.  If the page state cannot be read, waits the whole time.
+		 */
+		void waitUntilIdle(long timeout) throws InterruptedException {
+			long started = System.currentTimeMillis();
+			IdleCondition idle = new IdleCondition();
+			this.poller.poll(idle, timeout);
+			if (idle.unknown) {
+				long remaining = timeout - (System.currentTimeMillis() - started);
+				if (remaining > 0) {
+					Thread.sleep(remaining);
+				}
+			}
+		}
+
+		class IdleCondition implements WaitPoller.Condition {
+			int idleChecks;
+			boolean unknown;
+
+			public String check() {
+				String result;
+				try {
+					result = send("getEval", new String[] { IDLE_SCRIPT, "" });
+				} catch (SeleniumException e) {
+					this.unknown = true;
+					return null;
+				}
+				this.idleChecks = result.equals("OK,true") ? this.idleChecks + 1 : 0;
+				return this.idleChecks >= 2 ? null : "page busy";
+			}
 		}
 
 		public String doCommand(String cmd, String args[]) {
+			this.lastLookup = null;
 			if (cmd.equals("store")) {
 				cmd += "Expression";
-			} else if (cmd.equals("assertSelected") || cmd.equals("verifySelected")) {
+			} else if (cmd.equals("assertSelected") || cmd.equals("verifySelected") || cmd.equals("waitForSelected")) {
 				if (args[1].startsWith(INDEX_SPECIFIER)) {
 					cmd += "Index";
 					args[1] = args[1].substring(INDEX_SPECIFIER.length());
@@ -548,15 +1722,52 @@ content = content.trim();
 			} else if (cmd.equals("echo")) {
 				return "OK," + args[0];
 			} else if (cmd.equals("pause")) {
+				if (this.cache != null) {
+					// scripts on the page may change it while we wait
+					this.cache.invalidate();
+				}
 				try {
-					Thread.sleep(Integer.parseInt(args[0]));
+					if (this.pauseUntilIdle) {
+						waitUntilIdle(Integer.parseInt(args[0]));
+					} else {
+						Thread.sleep(Integer.parseInt(args[0]));
+					}
 					return "OK";
 				} catch (InterruptedException e) {
 					return "ERROR: pause interrupted";
 				}
+			} else if (cmd.equals("setTimeout")) {
+				try {
+					this.poller.setTimeout(Long.parseLong(args[0]));
+				} catch (NumberFormatException e) {
+					// let the server complain about it
+				}
 			}
 			try {
-				String result = super.doCommand(cmd, args);
+				String result;
+				if (this.cache != null && !expectError && AccessorCache.isCacheable(cmd, args)) {
+					result = this.cache.get(cmd, args);
+					if (result != null) {
+						this.lastLookup = AccessorCache.HIT;
+					} else {
+						this.lastLookup = AccessorCache.MISS;
+						result = send(cmd, args);
+						this.cache.put(cmd, args, result);
+					}
+					if (this.metrics != null) {
+						this.metrics.recordCacheLookup(this.lastLookup == AccessorCache.HIT);
+					}
+				} else {
+					if (this.cache != null) {
+						// anything else may change the page
+						this.cache.invalidate();
+					}
+					if (cmd.startsWith("waitFor") && !SERVER_WAITS.contains(cmd)) {
+						result = waitFor(cmd, args);
+					} else {
+						result = send(cmd, args);
+					}
+				}
 				if (expectError) {
 					throw new SeleniumException("ERROR: Error expected");
 				} else {
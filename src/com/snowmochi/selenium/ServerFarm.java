@@ -0,0 +1,234 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+import com.thoughtworks.selenium.*;
+
+/**
+ * Hands out browser sessions across several RC servers, each with its own
+ * number of concurrent session slots.  A session goes to the up server with
+ * the most free capacity; a server that cannot be reached when a session
+ * starts is taken out of rotation and the session is started on another
+ * server instead, so the waiting test never sees the failure.  Any other
+ * failure to start is the test's to report.  When no server is left,
+ * acquire() fails with the last server's failure.
+ */
+class ServerFarm {
+	static class Endpoint {
+		final String host;
+		final int port;
+		final int capacity;
+		int inUse;
+		boolean down;
+
+		Endpoint(String host, int port, int capacity) {
+			this.host = host;
+			this.port = port;
+			this.capacity = capacity;
+		}
+
+		public String toString() {
+			return this.host + ":" + this.port;
+		}
+	}
+
+	final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+	final Map<CommandProcessor, Endpoint> leases = new IdentityHashMap<CommandProcessor, Endpoint>();
+	SessionPool.Factory factory;
+	SessionPool sessionPool;
+	boolean verbose;
+	// why the last server was taken out of rotation
+	Exception lastFailure;
+
+	/**
+	 * Parses a comma-separated list of host[:port][*capacity] entries; the
+	 * port defaults to 4444 and the capacity to 1.
+	 */
+	static ServerFarm parse(String spec) {
+		ServerFarm farm = new ServerFarm();
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int capacity = 1;
+			int star = entry.indexOf('*');
+			if (star >= 0) {
+				capacity = Integer.parseInt(entry.substring(star + 1));
+				entry = entry.substring(0, star);
+			}
+			int port = 4444;
+			int colon = entry.lastIndexOf(':');
+			if (colon >= 0) {
+				port = Integer.parseInt(entry.substring(colon + 1));
+				entry = entry.substring(0, colon);
+			}
+			if (capacity < 1) {
+				throw new IllegalArgumentException("capacity of " + entry + " must be at least 1");
+			}
+			farm.endpoints.add(new Endpoint(entry, port, capacity));
+		}
+		if (farm.endpoints.isEmpty()) {
+			throw new IllegalArgumentException("no servers given");
+		}
+		return farm;
+	}
+
+	public void setFactory(SessionPool.Factory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Reuses sessions through the given pool instead of starting one per
+	 * test.
+	 */
+	public void setSessionPool(SessionPool sessionPool) {
+		this.sessionPool = sessionPool;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public synchronized int getCapacity() {
+		int capacity = 0;
+		for (Endpoint endpoint : this.endpoints) {
+			capacity += endpoint.capacity;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Returns a started session, waiting for a free slot if every up server
+	 * is busy.
+	 */
+	public CommandProcessor acquire(String browser, String baseUrl, boolean keepAlive) {
+		while (true) {
+			Endpoint endpoint = reserveSlot();
+			try {
+				CommandProcessor session;
+				if (this.sessionPool != null) {
+					session = this.sessionPool.acquire(endpoint.host, endpoint.port, browser, baseUrl, keepAlive);
+				} else {
+					session = this.factory.newSession(endpoint.host, endpoint.port, browser, baseUrl, keepAlive);
+					session.start();
+				}
+				synchronized (this) {
+					this.leases.put(session, endpoint);
+				}
+				if (this.verbose) {
+					System.out.println("Session started on " + endpoint);
+				}
+				return session;
+			} catch (RuntimeException e) {
+				if (!RetryPolicy.isTransient(e)) {
+					// the server answered, so it stays in rotation
+					freeSlot(endpoint);
+					throw e;
+				}
+				markDown(endpoint, e);
+			}
+		}
+	}
+
+	synchronized Endpoint reserveSlot() {
+		while (true) {
+			Endpoint best = null;
+			boolean anyUp = false;
+			for (Endpoint endpoint : this.endpoints) {
+				if (endpoint.down) {
+					continue;
+				}
+				anyUp = true;
+				if (endpoint.inUse < endpoint.capacity
+						&& (best == null || freeShare(endpoint) > freeShare(best))) {
+					best = endpoint;
+				}
+			}
+			if (!anyUp) {
+				if (this.lastFailure == null) {
+					throw new SeleniumException("No Selenium servers left in rotation");
+				}
+				throw new SeleniumException("No Selenium servers left in rotation; last failure: "
+					+ this.lastFailure.getMessage(), this.lastFailure);
+			}
+			if (best != null) {
+				best.inUse++;
+				return best;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SeleniumException("Interrupted waiting for a Selenium server", e);
+			}
+		}
+	}
+
+	static double freeShare(Endpoint endpoint) {
+		return (double) (endpoint.capacity - endpoint.inUse) / endpoint.capacity;
+	}
+
+	synchronized void markDown(Endpoint endpoint, Exception cause) {
+		endpoint.inUse--;
+		this.lastFailure = cause;
+		if (!endpoint.down) {
+			endpoint.down = true;
+			System.err.println("Taking Selenium server " + endpoint + " out of rotation: " + cause.getMessage());
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Gives back a session after a test completed normally.
+	 */
+	public void release(CommandProcessor session) {
+		Endpoint endpoint = endLease(session);
+		try {
+			if (this.sessionPool != null) {
+				this.sessionPool.release(session);
+			} else {
+				session.stop();
+			}
+		} finally {
+			freeSlot(endpoint);
+		}
+	}
+
+	/**
+	 * Gives back a session that is known or suspected to be broken.
+	 */
+	public void evict(CommandProcessor session) {
+		Endpoint endpoint = endLease(session);
+		if (this.sessionPool != null) {
+			this.sessionPool.evict(session);
+		} else {
+			SessionPool.stopQuietly(session);
+		}
+		freeSlot(endpoint);
+	}
+
+	synchronized Endpoint endLease(CommandProcessor session) {
+		return this.leases.remove(session);
+	}
+
+	synchronized void freeSlot(Endpoint endpoint) {
+		if (endpoint != null) {
+			endpoint.inUse--;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.util.*;
+import com.thoughtworks.selenium.*;
+
+/**
+ * Keeps started browser sessions around between tests so that a suite does
+ * not pay for a browser launch per test file.  Sessions are keyed by
+ * (host, port, browser, baseUrl, keepAlive); an idle session is reset before it is handed
+ * out again, and a session that fails the reset is stopped and discarded.
+ */
+class SessionPool {
+	interface Factory {
+		CommandProcessor newSession(String host, int port, String browser, String baseUrl, boolean keepAlive);
+	}
+
+	final Factory factory;
+	boolean verbose;
+	final Map<List<String>, LinkedList<CommandProcessor>> idle = new HashMap<List<String>, LinkedList<CommandProcessor>>();
+	final Map<CommandProcessor, List<String>> keys = new IdentityHashMap<CommandProcessor, List<String>>();
+	boolean closed;
+
+	SessionPool(Factory factory) {
+		this.factory = factory;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	static List<String> key(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+		return Arrays.asList(host, String.valueOf(port), browser, baseUrl, String.valueOf(keepAlive));
+	}
+
+	/**
+	 * Returns a started session for the given target, reusing an idle one
+	 * when it survives a reset.
+	 */
+	public CommandProcessor acquire(String host, int port, String browser, String baseUrl, boolean keepAlive) {
+		List<String> key = key(host, port, browser, baseUrl, keepAlive);
+		CommandProcessor session;
+		while ((session = takeIdle(key)) != null) {
+			if (reset(session)) {
+				return session;
+			}
+			evict(session);
+		}
+		session = this.factory.newSession(host, port, browser, baseUrl, keepAlive);
+		session.start();
+		synchronized (this) {
+			if (this.closed) {
+				stopQuietly(session);
+				throw new IllegalStateException("session pool has been closed");
+			}
+			this.keys.put(session, key);
+		}
+		if (this.verbose) {
+			System.out.println("Started pooled session for " + key);
+		}
+		return session;
+	}
+
+	synchronized CommandProcessor takeIdle(List<String> key) {
+		LinkedList<CommandProcessor> sessions = this.idle.get(key);
+		if (sessions == null || sessions.isEmpty()) {
+			return null;
+		}
+		return sessions.removeFirst();
+	}
+
+	/**
+	 * Clears cookies and navigates away from the previous test's page.  These
+	 * round-trips double as the health check for the session.
+	 */
+	boolean reset(CommandProcessor session) {
+		try {
+			session.doCommand("deleteAllVisibleCookies", new String[0]);
+			session.doCommand("open", new String[] { "about:blank" });
+			return true;
+		} catch (Exception e) {
+			if (this.verbose) {
+				System.out.println("Discarding pooled session: " + e.getMessage());
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a session to the pool after a test completed normally.
+	 */
+	public void release(CommandProcessor session) {
+		synchronized (this) {
+			List<String> key = this.keys.get(session);
+			if (key != null && !this.closed) {
+				LinkedList<CommandProcessor> sessions = this.idle.get(key);
+				if (sessions == null) {
+					sessions = new LinkedList<CommandProcessor>();
+					this.idle.put(key, sessions);
+				}
+				sessions.addLast(session);
+				return;
+			}
+		}
+		evict(session);
+	}
+
+	/**
+	 * Stops a session that is known or suspected to be broken.
+	 */
+	public void evict(CommandProcessor session) {
+		synchronized (this) {
+			this.keys.remove(session);
+		}
+		stopQuietly(session);
+	}
+
+	/**
+	 * Stops every session the pool still knows about.
+	 */
+	public void closeAll() {
+		List<CommandProcessor> sessions;
+		synchronized (this) {
+			this.closed = true;
+			sessions = new ArrayList<CommandProcessor>(this.keys.keySet());
+			this.keys.clear();
+			this.idle.clear();
+		}
+		for (CommandProcessor session : sessions) {
+			stopQuietly(session);
+		}
+	}
+
+	static void stopQuietly(CommandProcessor session) {
+		try {
+			session.stop();
+		} catch (Exception e) {
+			// the session is being thrown away anyway
+		}
+	}
+}
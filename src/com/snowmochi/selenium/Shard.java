@@ -0,0 +1,152 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * One of n slices of a suite for --shard i/n.  Tests are dealt out longest
+ * first, each to the slice with the least expected time so far
+ * (longest-processing-time packing), so that the slices finish at about the
+ * same time.  Durations come from earlier runs; a test without one counts
+ * as the mean of the others.  Every machine computes the same split from
+ * the same test list and durations, and each slice keeps suite order.
+ */
+class Shard {
+	final int index;
+	final int count;
+
+	Shard(int index, int count) {
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parses "i/n", with i counted from 1.
+	 */
+	static Shard parse(String spec) {
+		int slash = spec.indexOf('/');
+		try {
+			if (slash > 0) {
+				int index = Integer.parseInt(spec.substring(0, slash));
+				int count = Integer.parseInt(spec.substring(slash + 1));
+				if (count > 0 && index > 0 && index <= count) {
+					return new Shard(index, count);
+				}
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new BadUsageException("--shard must be followed by i/n, with i from 1 to n");
+	}
+
+	/**
+	 * Returns the slice each test goes to, counted from 0.
+	 */
+	int[] assign(List<Test> tests, Map<String, Long> durations) {
+		final long expected[] = new long[tests.size()];
+		long total = 0;
+		int known = 0;
+		for (int i = 0; i < expected.length; i++) {
+			Long duration = durations.get(durationKey(tests.get(i)));
+			expected[i] = duration == null ? -1 : duration.longValue();
+			if (duration != null) {
+				total += expected[i];
+				known++;
+			}
+		}
+		long fallback = known == 0 ? 1 : Math.max(1, total / known);
+		Integer order[] = new Integer[expected.length];
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] < 0) {
+				expected[i] = fallback;
+			}
+			order[i] = Integer.valueOf(i);
+		}
+		// longest first; equal durations keep suite order so the split is repeatable
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long difference = expected[b.intValue()] - expected[a.intValue()];
+				return difference != 0 ? (difference < 0 ? -1 : 1) : a.intValue() - b.intValue();
+			}
+		});
+		long load[] = new long[this.count];
+		int slices[] = new int[expected.length];
+		for (Integer test : order) {
+			int lightest = 0;
+			for (int slice = 1; slice < this.count; slice++) {
+				if (load[slice] < load[lightest]) {
+					lightest = slice;
+				}
+			}
+			slices[test.intValue()] = lightest;
+			load[lightest] += expected[test.intValue()];
+		}
+		return slices;
+	}
+
+	/**
+	 * Returns the name a test's duration is recorded and looked up by: its
+	 * label, which the fingerprint hashes too and which, unlike its path, is
+	 * the same wherever the tests are checked out.  The rows of a data file
+	 * share the file's label, and whitespace is collapsed since suite link
+	 * text may wrap.
+	 */
+	static String durationKey(Test test) {
+		String label = test.label != null ? test.label.trim().replaceAll("\\s+", " ") : test.file.getName();
+		int bracket = label.lastIndexOf('[');
+		if (test.parameters != null && bracket > 0 && label.endsWith("]")) {
+			label = label.substring(0, bracket);
+		}
+		return label;
+	}
+
+	/**
+	 * Returns this slice's tests in suite order.
+	 */
+	List<Test> select(List<Test> tests, int slices[]) {
+		List<Test> selected = new ArrayList<Test>();
+		for (int i = 0; i < slices.length; i++) {
+			if (slices[i] == this.index - 1) {
+				selected.add(tests.get(i));
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Returns a short hash of the whole split, which the merge step compares
+	 * to catch shards that were split from different test lists or
+	 * durations, and so may have skipped or repeated tests.  Labels rather
+	 * than paths are hashed, since machines may check out to different places.
+	 */
+	static String fingerprint(List<Test> tests, int slices[]) {
+		java.security.MessageDigest digest = TestPlanCache.newDigest();
+		try {
+			for (int i = 0; i < slices.length; i++) {
+				digest.update((tests.get(i).label + "\t" + slices[i] + "\n").getBytes("UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return TestPlanCache.toHex(digest.digest()).substring(0, 12);
+	}
+
+	public String toString() {
+		return this.index + "/" + this.count;
+	}
+}
@@ -0,0 +1,363 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A stand-in for a Selenium RC server that speaks the
+ * /selenium-server/driver/ protocol used by HttpCommandProcessor but drives
+ * no browser.  Every command succeeds after a configurable delay (actions
+ * return "OK", get* accessors an empty string, is* accessors true), with
+ * optional random failures and a configurable session start cost.  Used
+ * for measuring the driver's own throughput; see the --stub options.
+ *
+ * It can also be run on its own:
+ * StubRemoteControl [--port n] [--latency spec] [--failure-rate f] [--session-cost ms]
+ */
+public class StubRemoteControl {
+	static final String DRIVER_PATH = "/selenium-server/driver/";
+
+	int port;
+	long latency;
+	final Map<String, Long> commandLatencies = new HashMap<String, Long>();
+	double failureRate;
+	long sessionCost;
+	double sessionFailureRate;
+	final Random random = new Random();
+
+	ServerSocket serverSocket;
+	ExecutorService executor;
+	final AtomicInteger sessionCounter = new AtomicInteger();
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong serviceNanos = new AtomicLong();
+	final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+	public static void main(String args[]) throws Exception {
+		StubRemoteControl stub = new StubRemoteControl();
+		stub.setPort(4444);
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--port") && i + 1 < args.length) {
+				stub.setPort(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("--latency") && i + 1 < args.length) {
+				stub.setLatency(args[++i]);
+			} else if (args[i].equals("--failure-rate") && i + 1 < args.length) {
+				stub.setFailureRate(Double.parseDouble(args[++i]));
+			} else if (args[i].equals("--session-cost") && i + 1 < args.length) {
+				stub.setSessionCost(Long.parseLong(args[++i]));
+			} else if (args[i].equals("--session-failure-rate") && i + 1 < args.length) {
+				stub.setSessionFailureRate(Double.parseDouble(args[++i]));
+			} else {
+				System.err.println("Usage: StubRemoteControl [--port n] [--latency ms[,cmd=ms...]] [--failure-rate f] [--session-cost ms] [--session-failure-rate f]");
+				System.exit(1);
+			}
+		}
+		stub.start();
+		System.out.println("Stub Selenium RC listening on port " + stub.getPort());
+		// the server threads are daemons; keep the JVM up until killed
+		synchronized (stub) {
+			stub.wait();
+		}
+	}
+
+	public StubRemoteControl() {
+	}
+
+	/**
+	 * Sets the port to listen on; 0 (the default) picks a free one.
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getPort() {
+		return this.serverSocket != null ? this.serverSocket.getLocalPort() : this.port;
+	}
+
+	/**
+	 * Parses a latency spec: a default delay in ms, optionally followed by
+	 * per-command overrides, e.g. "20,open=300,clickAndWait=500".
+	 */
+	public void setLatency(String spec) {
+		for (String part : spec.split(",")) {
+			int equals = part.indexOf('=');
+			if (equals < 0) {
+				this.latency = Long.parseLong(part.trim());
+			} else {
+				this.commandLatencies.put(part.substring(0, equals).trim(), Long.valueOf(part.substring(equals + 1).trim()));
+			}
+		}
+	}
+
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public void setSessionCost(long sessionCost) {
+		this.sessionCost = sessionCost;
+	}
+
+	public void setSessionFailureRate(double sessionFailureRate) {
+		this.sessionFailureRate = sessionFailureRate;
+	}
+
+	public long getRequestCount() {
+		return this.requests.get();
+	}
+
+	/**
+	 * Returns the total time spent answering requests, including the
+	 * configured delays.
+	 */
+	public long getServiceNanos() {
+		return this.serviceNanos.get();
+	}
+
+	public void start() throws IOException {
+		this.serverSocket = new ServerSocket(this.port);
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "stub-rc");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.execute(new Runnable() {
+			public void run() {
+				acceptConnections();
+			}
+		});
+	}
+
+	public void stop() {
+		try {
+			this.serverSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		synchronized (this.connections) {
+			for (Socket socket : this.connections) {
+				closeQuietly(socket);
+			}
+		}
+		this.executor.shutdownNow();
+	}
+
+	void acceptConnections() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				this.connections.add(socket);
+				this.executor.execute(new Runnable() {
+					public void run() {
+						try {
+							serve(socket);
+						} catch (IOException e) {
+							// client went away
+						} finally {
+							StubRemoteControl.this.connections.remove(socket);
+							closeQuietly(socket);
+						}
+					}
+				});
+			} catch (IOException e) {
+				// closed by stop()
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Answers requests on one connection until the client closes it or asks
+	 * for it to be closed.
+	 */
+	void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			if (requestLine.length() == 0) {
+				continue;
+			}
+			long started = System.nanoTime();
+			String parts[] = requestLine.split(" ");
+			if (parts.length < 3) {
+				return;
+			}
+			boolean keepAlive = parts[2].equals("HTTP/1.1");
+			int contentLength = 0;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					contentLength = Integer.parseInt(value);
+				} else if (name.equalsIgnoreCase("Connection")) {
+					keepAlive = value.equalsIgnoreCase("keep-alive");
+				}
+			}
+			byte body[] = new byte[contentLength];
+			int read = 0;
+			while (read < contentLength) {
+				int count = in.read(body, read, contentLength - read);
+				if (count < 0) {
+					return;
+				}
+				read += count;
+			}
+
+			String status;
+			String response;
+			String path = parts[1];
+			int question = path.indexOf('?');
+			if (!(question < 0 ? path : path.substring(0, question)).startsWith(DRIVER_PATH)) {
+				status = "404 Not Found";
+				response = "Not found";
+			} else {
+				Map<String, String> params = new HashMap<String, String>();
+				if (question >= 0) {
+					parseParams(path.substring(question + 1), params);
+				}
+				parseParams(new String(body, "UTF-8"), params);
+				status = "200 OK";
+				response = handle(params);
+			}
+
+			byte responseBytes[] = response.getBytes("UTF-8");
+			out.write(("HTTP/1.1 " + status + "\r\n"
+				+ "Content-Type: text/plain; charset=utf-8\r\n"
+				+ "Content-Length: " + responseBytes.length + "\r\n"
+				+ (keepAlive ? "" : "Connection: close\r\n")
+				+ "\r\n").getBytes("US-ASCII"));
+			out.write(responseBytes);
+			out.flush();
+			this.requests.incrementAndGet();
+			this.serviceNanos.addAndGet(System.nanoTime() - started);
+			if (!keepAlive) {
+				return;
+			}
+		}
+	}
+
+	String handle(Map<String, String> params) {
+		String cmd = params.get("cmd");
+		if (cmd == null) {
+			return "ERROR: no command";
+		}
+		if (cmd.equals("getNewBrowserSession")) {
+			pause(this.sessionCost);
+			if (chance(this.sessionFailureRate)) {
+				return "ERROR: stub failed to start the browser";
+			}
+			return "OK," + "stub" + this.sessionCounter.incrementAndGet();
+		}
+		if (cmd.equals("testComplete")) {
+			return "OK";
+		}
+		Long commandLatency = this.commandLatencies.get(cmd);
+		pause(commandLatency != null ? commandLatency.longValue() : this.latency);
+		if (chance(this.failureRate)) {
+			return "ERROR: stub injected failure for " + cmd;
+		}
+		if (cmd.equals("getEval")) {
+			String script = params.get("1");
+			if (script != null && script.startsWith("(function(sel)")) {
+				// an AccessorBatch script; report every check as passed
+				StringBuilder result = new StringBuilder("OK,");
+				for (int i = script.indexOf("try {"); i >= 0; i = script.indexOf("try {", i + 1)) {
+					result.append("1:P");
+				}
+				return result.toString();
+			}
+			return "OK,";
+		} else if (cmd.startsWith("get")) {
+			return "OK,";
+		} else if (cmd.startsWith("is")) {
+			return "OK,true";
+		}
+		return "OK";
+	}
+
+	boolean chance(double rate) {
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (this.random) {
+			return this.random.nextDouble() < rate;
+		}
+	}
+
+	static void pause(long millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static void parseParams(String query, Map<String, String> params) throws UnsupportedEncodingException {
+		if (query.length() == 0) {
+			return;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+			params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+				URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+		}
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import org.w3c.dom.*;
+import com.snowmochi.selenium.SeleniumHtmlClient.*;
+
+/**
+ * Finds tests lazily, one directory listing or suite file at a time, so that
+ * the first test can start before the rest of the tree has been looked at.
+ * Sources are suite files, whose links may lead to further suites, and
+ * directories or glob patterns, which yield every test file beneath them.
+ * Suite files met while walking a directory are skipped, since the tests
+ * they list are found by the walk itself, but a file that only looks like
+ * a suite and cannot be read as one is run as a test.  A test with a data
+ * file, linked from the second cell of its suite row or by a selenium.data
+ * link in the test, becomes one test per data row, read as the tests are
+ * taken.
+ */
+class TestDiscovery implements Iterator<Test> {
+	static final int PEEK_SIZE = 8192;
+	static final Pattern DATA_LINK = Pattern.compile(
+		"<link\\s[^>]*rel\\s*=\\s*[\"']?selenium\\.data[^>]*>", Pattern.CASE_INSENSITIVE);
+	static final Pattern SUITE_ROW = Pattern.compile(
+		"<tr[^>]*>\\s*<td[^>]*>\\s*<a\\s", Pattern.CASE_INSENSITIVE);
+	static final Pattern DATA_FILE = Pattern.compile("\\.(?:csv|tsv|tab)$", Pattern.CASE_INSENSITIVE);
+	static final Pattern HREF = Pattern.compile(
+		"href\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", Pattern.CASE_INSENSITIVE);
+
+	abstract class Source {
+		/**
+		 * Returns the next test, or null if this source is used up or has
+		 * pushed a nested source that should be read first.
+		 */
+		abstract Test advance();
+	}
+
+	final SeleniumHtmlClient client;
+	// the first source is the one being read; nested sources are pushed in front of their parent
+	final LinkedList<Source> sources = new LinkedList<Source>();
+	Test pending;
+
+	TestDiscovery(SeleniumHtmlClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Queues the tests listed by a suite file and returns the suite's title.
+	 */
+	public String addSuite(File file) throws Exception {
+		SuiteSource suite = new SuiteSource(file);
+		this.sources.addLast(suite);
+		return suite.name;
+	}
+
+	/**
+	 * Queues a single test file, which is only worth doing for one with a
+	 * data file.
+	 */
+	public void addTest(File file) {
+		final Test test = found(file, file.getName(), null, peek(file));
+		if (test != null) {
+			this.sources.addLast(new Source() {
+				boolean taken;
+
+				Test advance() {
+					if (this.taken) {
+						return null;
+					}
+					this.taken = true;
+					return test;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues the test files under a directory, or those matching a glob
+	 * pattern in which * and ? stay within one directory and ** spans any
+	 * number of them.
+	 */
+	public void addDirectory(String spec) {
+		String path = spec.replace(File.separatorChar, '/');
+		int wildcard = indexOfWildcard(path);
+		if (wildcard < 0) {
+			this.sources.addLast(new DirectorySource(new File(spec), "", null, Integer.MAX_VALUE));
+			return;
+		}
+		int slash = path.lastIndexOf('/', wildcard);
+		File root = new File(slash < 0 ? "." : path.substring(0, slash + 1));
+		String glob = path.substring(slash + 1);
+		int maxDepth = Integer.MAX_VALUE;
+		if (glob.indexOf("**") < 0) {
+			maxDepth = 0;
+			for (int i = 0; i < glob.length(); i++) {
+				if (glob.charAt(i) == '/') maxDepth++;
+			}
+		}
+		this.sources.addLast(new DirectorySource(root, "", globToPattern(glob), maxDepth));
+	}
+
+	static int indexOfWildcard(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '*' || c == '?' || c == '[') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static Pattern globToPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (glob.startsWith("**/", i)) {
+				regex.append("(?:.*/)?");
+				i += 2;
+			} else if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '[') {
+				int end = glob.indexOf(']', i);
+				if (end < 0) {
+					regex.append("\\[");
+				} else {
+					regex.append(glob, i, end + 1);
+					i = end;
+				}
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	public boolean hasNext() {
+		while (this.pending == null && !this.sources.isEmpty()) {
+			Source source = this.sources.getFirst();
+			this.pending = source.advance();
+			if (this.pending == null && this.sources.getFirst() == source) {
+				this.sources.removeFirst();
+			}
+		}
+		return this.pending != null;
+	}
+
+	public Test next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Test test = this.pending;
+		this.pending = null;
+		return test;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns the test for a file, or queues one test per row of its data
+	 * file and returns null.  A data file given by the suite overrides the
+	 * test's own.
+	 */
+	Test found(File file, String label, File data, String head) {
+		if (data == null) {
+			data = dataFile(file, head);
+		}
+		if (data != null) {
+			try {
+				this.sources.addFirst(new DataSource(file, label, new DataTable(data)));
+			} catch (IOException e) {
+				System.err.println("Warning: Skipping " + file + ", whose data file " + data + " is unreadable: " + e.getMessage());
+			}
+			return null;
+		}
+		Test test = new Test();
+		test.label = label;
+		test.file = file;
+		return test;
+	}
+
+	/**
+	 * Returns the data file named by a selenium.data link in the test's
+	 * first few kilobytes, relative to the test.
+	 */
+	static File dataFile(File file, String head) {
+		if (head == null) {
+			return null;
+		}
+		Matcher link = DATA_LINK.matcher(head);
+		if (!link.find()) {
+			return null;
+		}
+		Matcher href = HREF.matcher(link.group());
+		if (!href.find()) {
+			return null;
+		}
+		String path = href.group(1) != null ? href.group(1) : href.group(2) != null ? href.group(2) : href.group(3);
+		return new File(file.getParentFile(), path);
+	}
+
+	static boolean isSuite(File file) {
+		return isSuite(peek(file));
+	}
+
+	/**
+	 * Guesses whether an HTML file is a suite rather than a test from its
+	 * first few kilobytes: Selenium IDE marks suite tables with the
+	 * suiteTable id, and a suite's rows start with a link where a test's
+	 * start with a command.
+	 */
+	static boolean isSuite(String head) {
+		if (head == null) {
+			// let running it report the problem
+			return false;
+		}
+		if (head.toLowerCase().indexOf("suitetable") >= 0) {
+			return true;
+		}
+		return SUITE_ROW.matcher(head).find();
+	}
+
+	/**
+	 * Returns whether a file that looks like a suite can be read as one.
+	 */
+	boolean readsAsSuite(File file) {
+		try {
+			new SuiteSource(file);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the first few kilobytes of a file, or null if it cannot be read.
+	 */
+	static String peek(File file) {
+		try {
+			Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+			try {
+				char buffer[] = new char[PEEK_SIZE];
+				int length = 0;
+				int count;
+				while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+					length += count;
+				}
+				return new String(buffer, 0, length);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	static boolean isHtml(String name) {
+		String lower = name.toLowerCase();
+		return lower.endsWith(".html") || lower.endsWith(".htm");
+	}
+
+	class DirectorySource extends Source {
+		final File directory;
+		final String prefix;
+		final Pattern pattern;
+		final int depth;
+		File entries[];
+		int index;
+
+		DirectorySource(File directory, String prefix, Pattern pattern, int depth) {
+			this.directory = directory;
+			this.prefix = prefix;
+			this.pattern = pattern;
+			this.depth = depth;
+		}
+
+		Test advance() {
+			if (this.entries == null) {
+				this.entries = this.directory.listFiles();
+				if (this.entries == null) {
+					System.err.println("Warning: Cannot list test directory " + this.directory);
+					this.entries = new File[0];
+				}
+				Arrays.sort(this.entries);
+			}
+			while (this.index < this.entries.length) {
+				File entry = this.entries[this.index++];
+				String path = this.prefix + entry.getName();
+				if (entry.isDirectory()) {
+					if (this.depth > 0 && !entry.isHidden()) {
+						sources.addFirst(new DirectorySource(entry, path + "/", this.pattern, this.depth - 1));
+						return null;
+					}
+				} else if (this.pattern == null ? isHtml(path) : this.pattern.matcher(path).matches()) {
+					String head = peek(entry);
+					if (isSuite(head) && readsAsSuite(entry)) {
+						continue;
+					}
+					Test test = found(entry, path, null, head);
+					if (test != null || sources.getFirst() != this) {
+						return test;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	class SuiteSource extends Source {
+		final File file;
+		final String name;
+		final String labels[];
+		final File files[];
+		final File data[];
+		int index;
+
+		SuiteSource(File file) throws Exception {
+			this.file = file;
+			Document document = client.parseDocument(file.toString());
+			Element table = (Element) document.getElementsByTagName("table").item(0);
+			if (table == null) {
+				throw new IOException(file + " has no suite table");
+			}
+			NodeList tableRows = table.getElementsByTagName("tr");
+			this.name = tableRows.item(0).getTextContent();
+			this.labels = new String[tableRows.getLength() - 1];
+			this.files = new File[tableRows.getLength() - 1];
+			this.data = new File[tableRows.getLength() - 1];
+			for (int i = 1; i < tableRows.getLength(); i++) {
+				NodeList cells = ((Element) tableRows.item(i)).getElementsByTagName("td");
+				Element link = cells.getLength() > 0
+					? (Element) ((Element) cells.item(0)).getElementsByTagName("a").item(0) : null;
+				if (link == null) {
+					throw new IOException(file + ": row " + i + " does not link to a test");
+				}
+				this.labels[i - 1] = link.getTextContent();
+				this.files[i - 1] = new File(file.getParentFile(), link.getAttribute("href"));
+				if (cells.getLength() > 1) {
+					this.data[i - 1] = dataLink(file, (Element) cells.item(1));
+				}
+			}
+		}
+
+		/**
+		 * Returns the data file linked from a cell after the test's, if the
+		 * link says it is one by its selenium.data rel or its extension;
+		 * any other content is left alone.
+		 */
+		File dataLink(File file, Element cell) {
+			NodeList links = cell.getElementsByTagName("a");
+			for (int i = 0; i < links.getLength(); i++) {
+				Element link = (Element) links.item(i);
+				String href = link.getAttribute("href");
+				if (href.length() > 0 && (link.getAttribute("rel").equalsIgnoreCase("selenium.data")
+						|| DATA_FILE.matcher(href).find())) {
+					return new File(file.getParentFile(), href);
+				}
+			}
+			return null;
+		}
+
+		Test advance() {
+			while (this.index < this.files.length) {
+				File target = this.files[this.index];
+				String label = this.labels[this.index];
+				File data = this.data[this.index];
+				this.index++;
+				String head = peek(target);
+				if (isSuite(head)) {
+					if (isOpen(target)) {
+						System.err.println("Warning: Skipping suite " + target + ", which includes itself");
+						continue;
+					}
+					try {
+						sources.addFirst(new SuiteSource(target));
+						return null;
+					} catch (Exception e) {
+						System.err.println("Warning: Running " + target + " as a test, since it does not read as a suite: " + e);
+					}
+				}
+				Test test = found(target, label, data, head);
+				if (test != null || sources.getFirst() != this) {
+					return test;
+				}
+			}
+			return null;
+		}
+
+		boolean isOpen(File target) {
+			String path = canonicalPath(target);
+			for (Source source : sources) {
+				if (source instanceof SuiteSource && canonicalPath(((SuiteSource) source).file).equals(path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * One test per row of a data file, with the row's columns as its
+	 * parameters.
+	 */
+	class DataSource extends Source {
+		final File file;
+		final String label;
+		final DataTable table;
+		int row;
+
+		DataSource(File file, String label, DataTable table) {
+			this.file = file;
+			this.label = label;
+			this.table = table;
+		}
+
+		Test advance() {
+			Map<String, String> values;
+			try {
+				values = this.table.next();
+			} catch (IOException e) {
+				System.err.println("Warning: Stopped reading " + this.table.file + " for " + this.file + ": " + e.getMessage());
+				values = null;
+			}
+			if (values == null) {
+				this.table.close();
+				return null;
+			}
+			this.row++;
+			Test test = new Test();
+			test.label = this.label + "[" + this.row + "]";
+			test.file = this.file;
+			test.parameters = values;
+			return test;
+		}
+	}
+
+	static String canonicalPath(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+}
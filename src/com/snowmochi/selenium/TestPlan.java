@@ -0,0 +1,186 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import org.w3c.dom.*;
+
+/**
+ * A Selenese test reduced to what is needed to run it: the test name, the
+ * base URL declared by the file (if any), and one command name plus
+ * normalized argument array per table row.  Comment rows have null
+ * arguments.  Rows whose arguments reference ${variables} also get their
+ * templates, which are rebuilt on loading rather than stored.  Plans are
+ * shared between runs, so callers must copy an argument array before
+ * handing it to anything that modifies it.
+ */
+class TestPlan {
+	// bumped whenever compile() would build a different plan from the same file
+	static final int FORMAT_VERSION = 2;
+
+	/**
+	 * One step, as handed out by a plan or read by a TestRowReader.
+	 */
+	static class Row {
+		final String command;
+		final String args[];
+		final ArgumentTemplate templates[];
+
+		Row(String command, String args[], ArgumentTemplate templates[]) {
+			this.command = command;
+			this.args = args;
+			this.templates = templates;
+		}
+	}
+
+	String name;
+	String baseUrl;
+	String commands[];
+	String args[][];
+	ArgumentTemplate templates[][];
+
+	public int size() {
+		return this.commands.length;
+	}
+
+	public Row row(int step) {
+		return new Row(this.commands[step], this.args[step], this.templates[step]);
+	}
+
+	static TestPlan compile(Document document) {
+		TestPlan plan = new TestPlan();
+		NodeList links = document.getElementsByTagName("link");
+		for (int i = 0; i < links.getLength(); i++) {
+			Element link = (Element) links.item(i);
+			// a selenium.data link is no base URL; any other link is taken as one, as before
+			if (link.getAttribute("rel").equals("selenium.base")) {
+				plan.baseUrl = link.getAttribute("href");
+				break;
+			} else if (plan.baseUrl == null && !link.getAttribute("rel").equals("selenium.data")) {
+				plan.baseUrl = link.getAttribute("href");
+			}
+		}
+		NodeList tableRows = document.getElementsByTagName("tr");
+		plan.name = tableRows.item(0).getTextContent();
+		plan.commands = new String[tableRows.getLength() - 1];
+		plan.args = new String[tableRows.getLength() - 1][];
+		for (int i = 1; i < tableRows.getLength(); i++) {
+			NodeList stepFields = ((Element) tableRows.item(i)).getElementsByTagName("td");
+			plan.commands[i - 1] = stepFields.item(0).getTextContent().trim();
+			if (stepFields.getLength() == 1) {
+				// comment row
+				continue;
+			}
+			String stepArgs[] = new String[stepFields.getLength() - 1];
+			for (int j = 1; j < stepFields.getLength(); j++) {
+				stepArgs[j - 1] = normalize(stepFields.item(j).getTextContent());
+			}
+			plan.args[i - 1] = stepArgs;
+		}
+		plan.compileTemplates();
+		return plan;
+	}
+
+	/**
+	 * Collapses runs of spaces, turns non-breaking spaces into plain ones and
+	 * trims the result, in that order.
+	 */
+	static String normalize(String content) {
+		StringBuilder collapsed = new StringBuilder(content.length());
+		char previous = 0;
+		for (int i = 0; i < content.length(); i++) {
+			char c = content.charAt(i);
+			if (c == ' ' && previous == ' ') {
+				continue;
+			}
+			collapsed.append(c == '\u00A0' ? ' ' : c);
+			previous = c;
+		}
+		return collapsed.toString().trim();
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, this.name);
+		writeString(out, this.baseUrl);
+		out.writeInt(this.commands.length);
+		for (int i = 0; i < this.commands.length; i++) {
+			writeString(out, this.commands[i]);
+			if (this.args[i] == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(this.args[i].length);
+				for (String arg : this.args[i]) {
+					writeString(out, arg);
+				}
+			}
+		}
+	}
+
+	static TestPlan read(DataInputStream in) throws IOException {
+		if (in.readInt() != FORMAT_VERSION) {
+			throw new IOException("unsupported test plan format");
+		}
+		TestPlan plan = new TestPlan();
+		plan.name = readString(in);
+		plan.baseUrl = readString(in);
+		int count = in.readInt();
+		plan.commands = new String[count];
+		plan.args = new String[count][];
+		for (int i = 0; i < count; i++) {
+			plan.commands[i] = readString(in);
+			int argCount = in.readInt();
+			if (argCount >= 0) {
+				plan.args[i] = new String[argCount];
+				for (int j = 0; j < argCount; j++) {
+					plan.args[i][j] = readString(in);
+				}
+			}
+		}
+		plan.compileTemplates();
+		return plan;
+	}
+
+	void compileTemplates() {
+		this.templates = new ArgumentTemplate[this.args.length][];
+		for (int i = 0; i < this.args.length; i++) {
+			if (this.args[i] != null) {
+				this.templates[i] = ArgumentTemplate.compile(this.args[i]);
+			}
+		}
+	}
+
+	// writeUTF() is limited to 64K, which a long getEval script can exceed
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte bytes[] = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte bytes[] = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,168 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Caches compiled test plans by file path and content hash, in memory and
+ * optionally in a directory on disk, so that unchanged test files need not
+ * be parsed again.
+ */
+class TestPlanCache {
+	static class Entry {
+		final String hash;
+		final TestPlan plan;
+
+		Entry(String hash, TestPlan plan) {
+			this.hash = hash;
+			this.plan = plan;
+		}
+	}
+
+	File cacheDir;
+	final Map<String, Entry> memory = new HashMap<String, Entry>();
+
+	public TestPlanCache() {
+	}
+
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	public static String hash(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte buffer[] = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	public TestPlan get(File file, String hash) {
+		String path = file.getAbsolutePath();
+		synchronized (this.memory) {
+			Entry entry = this.memory.get(path);
+			if (entry != null && entry.hash.equals(hash)) {
+				return entry.plan;
+			}
+		}
+		TestPlan plan = readFromDisk(path, hash);
+		if (plan != null) {
+			remember(path, hash, plan);
+		}
+		return plan;
+	}
+
+	public void put(File file, String hash, TestPlan plan) {
+		String path = file.getAbsolutePath();
+		remember(path, hash, plan);
+		writeToDisk(path, hash, plan);
+	}
+
+	void remember(String path, String hash, TestPlan plan) {
+		synchronized (this.memory) {
+			this.memory.put(path, new Entry(hash, plan));
+		}
+	}
+
+	File cacheFile(String path, String hash) {
+		MessageDigest digest = newDigest();
+		try {
+			digest.update(path.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(hash.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return new File(this.cacheDir, toHex(digest.digest()) + ".plan");
+	}
+
+	TestPlan readFromDisk(String path, String hash) {
+		if (this.cacheDir == null) {
+			return null;
+		}
+		File file = cacheFile(path, hash);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				return TestPlan.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Ignoring unreadable plan cache entry " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	void writeToDisk(String path, String hash, TestPlan plan) {
+		if (this.cacheDir == null) {
+			return;
+		}
+		File file = cacheFile(path, hash);
+		File temp = null;
+		try {
+			this.cacheDir.mkdirs();
+			// write under a temporary name so concurrent readers never see a partial plan
+			temp = File.createTempFile("plan", ".tmp", this.cacheDir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				plan.write(out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException("could not rename " + temp);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Could not write plan cache entry " + file + ": " + e.getMessage());
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte bytes[]) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
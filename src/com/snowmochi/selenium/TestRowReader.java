@@ -0,0 +1,186 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+import java.io.*;
+import java.util.*;
+import org.apache.xerces.xni.*;
+import org.apache.xerces.xni.parser.*;
+import org.cyberneko.html.HTMLConfiguration;
+import org.cyberneko.html.filters.DefaultFilter;
+
+/**
+ * Reads a test file one table row at a time, for tests too large to hold
+ * as a document or plan.  NekoHTML's pull configuration does the parsing,
+ * so malformed HTML is read the same way as when building a document, and
+ * only the row being read is kept in memory.  Rows come out as a compiled
+ * plan would hold them: the first row names the test, the first link
+ * element gives the base URL, and comment rows have null arguments.
+ */
+class TestRowReader {
+	final File file;
+	final InputStream in;
+	final HTMLConfiguration parser = new HTMLConfiguration();
+	final RowCollector collector = new RowCollector();
+	boolean more = true;
+	String name;
+	String baseUrl;
+
+	TestRowReader(File file) throws IOException {
+		this.file = file;
+		this.in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			this.parser.setDocumentHandler(this.collector);
+			this.parser.setInputSource(new XMLInputSource(null, file.getPath(), null, this.in, null));
+			List<String> first = read();
+			if (first == null) {
+				throw new IOException(file + " has no table rows");
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getBaseUrl() {
+		return this.baseUrl;
+	}
+
+	/**
+	 * Returns the next step, or null at the end of the file.
+	 */
+	public TestPlan.Row next() throws IOException {
+		List<String> cells;
+		do {
+			cells = read();
+			if (cells == null) {
+				return null;
+			}
+		} while (cells.isEmpty());
+		String command = cells.get(0).trim();
+		if (cells.size() == 1) {
+			// comment row
+			return new TestPlan.Row(command, null, null);
+		}
+		String args[] = new String[cells.size() - 1];
+		for (int i = 1; i < cells.size(); i++) {
+			args[i - 1] = TestPlan.normalize(cells.get(i));
+		}
+		return new TestPlan.Row(command, args, ArgumentTemplate.compile(args));
+	}
+
+	/**
+	 * Parses until the next row has ended and returns its cells.
+	 */
+	List<String> read() throws IOException {
+		try {
+			while (this.collector.row == null && this.more) {
+				this.more = this.parser.parse(false);
+			}
+		} catch (XNIException e) {
+			IOException error = new IOException("Could not parse " + this.file + ": " + e.getMessage());
+			error.initCause(e);
+			throw error;
+		}
+		List<String> cells = this.collector.row;
+		this.collector.row = null;
+		return cells;
+	}
+
+	public void close() {
+		this.more = false;
+		this.parser.cleanup();
+		try {
+			this.in.close();
+		} catch (IOException e) {
+			// nothing more is read from it
+		}
+	}
+
+	static boolean is(QName element, String tag) {
+		return tag.equalsIgnoreCase(element.localpart != null ? element.localpart : element.rawname);
+	}
+
+	/**
+	 * Turns parser events into rows of cell text.  The first row's text is
+	 * taken as a whole, as the test name.
+	 */
+	class RowCollector extends DefaultFilter {
+		List<String> cells;
+		StringBuilder text;
+		StringBuilder nameText;
+		List<String> row;
+		boolean baseFound;
+
+		public void startElement(QName element, XMLAttributes attributes, Augmentations augs) {
+			if (is(element, "tr")) {
+				this.cells = new ArrayList<String>();
+				if (TestRowReader.this.name == null) {
+					this.nameText = new StringBuilder();
+				}
+			} else if (is(element, "td") && this.cells != null) {
+				this.text = new StringBuilder();
+			} else if (is(element, "link")) {
+				link(attributes);
+			}
+		}
+
+		public void emptyElement(QName element, XMLAttributes attributes, Augmentations augs) {
+			if (is(element, "link")) {
+				link(attributes);
+			}
+		}
+
+		void link(XMLAttributes attributes) {
+			String rel = attributes.getValue("rel");
+			if (TestRowReader.this.name != null || "selenium.data".equals(rel)) {
+				return;
+			}
+			// as in TestPlan.compile, a selenium.base link wins over any other
+			if (TestRowReader.this.baseUrl == null || "selenium.base".equals(rel) && !this.baseFound) {
+				String href = attributes.getValue("href");
+				TestRowReader.this.baseUrl = href == null ? "" : href;
+				this.baseFound = "selenium.base".equals(rel);
+			}
+		}
+
+		public void characters(XMLString content, Augmentations augs) {
+			if (this.text != null) {
+				this.text.append(content.ch, content.offset, content.length);
+			}
+			if (this.nameText != null) {
+				this.nameText.append(content.ch, content.offset, content.length);
+			}
+		}
+
+		public void endElement(QName element, Augmentations augs) {
+			if (is(element, "td") && this.text != null) {
+				this.cells.add(this.text.toString());
+				this.text = null;
+			} else if (is(element, "tr") && this.cells != null) {
+				if (this.nameText != null) {
+					TestRowReader.this.name = this.nameText.toString();
+					this.nameText = null;
+				}
+				this.row = this.cells;
+				this.cells = null;
+			}
+		}
+	}
+}
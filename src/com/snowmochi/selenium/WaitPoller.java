@@ -0,0 +1,70 @@
+/* Copyright 2009 Daiji Takamori
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.snowmochi.selenium;
+
+/**
+ * Polls a condition until it holds or a timeout passes, starting with short
+ * intervals so that conditions which are almost met cost little, and
+ * backing off so that slow ones do not flood the server with requests.
+ */
+class WaitPoller {
+	interface Condition {
+		/**
+		 * Returns null once the condition holds, or otherwise a description
+		 * of why it does not hold yet.
+		 */
+		String check();
+	}
+
+	static final long DEFAULT_TIMEOUT = 30000;
+	static final long INITIAL_INTERVAL = 20;
+	static final long MAX_INTERVAL = 500;
+
+	long timeout = DEFAULT_TIMEOUT;
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * Checks the condition until it holds, waiting at most the configured
+	 * timeout.  Returns null on success, or the last description of the
+	 * unmet condition on timeout.
+	 */
+	public String poll(Condition condition) throws InterruptedException {
+		return poll(condition, this.timeout);
+	}
+
+	public String poll(Condition condition, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long interval = INITIAL_INTERVAL;
+		while (true) {
+			String unmet = condition.check();
+			if (unmet == null) {
+				return null;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return unmet;
+			}
+			Thread.sleep(Math.min(interval, remaining));
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+		}
+	}
+}